@@ -0,0 +1,105 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A load test of the async operations of many helpers, as when the InAppPurchase
+ * custom event creates a helper for every banner refresh. Each helper has its own
+ * operation queue and runs an inventory query and a consume, each of which waits on
+ * a simulated billing call. The operations run either on a new thread each, as
+ * IabHelper used to, or on the shared async executor; the test reports the threads
+ * created, the most alive at once, the rejected operations and the elapsed time.
+ *
+ * Usage: AsyncExecutorLoadBenchmark [helpers [ms between helpers [ms per billing call]]]
+ */
+public class AsyncExecutorLoadBenchmark {
+    public static void main(String[] args) throws Exception {
+        int helpers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long interval = args.length > 1 ? Long.parseLong(args[1]) : 10;
+        long latency = args.length > 2 ? Long.parseLong(args[2]) : 5;
+
+        System.out.println(helpers + " helpers, one every " + interval + " ms, "
+                + latency + " ms per billing call");
+
+        final AtomicInteger started = new AtomicInteger();
+        run("thread per operation", helpers, interval, latency, new Executor() {
+            public void execute(Runnable task) {
+                started.incrementAndGet();
+                new Thread(task).start();
+            }
+        }, started);
+        run("shared async executor", helpers, interval, latency, null, null);
+    }
+
+    // Runs the helpers' operations on the executor, or on the shared async executor if
+    // it is null, and prints what it took. threadsStarted counts the threads the
+    // executor starts; the shared executor counts its own.
+    private static void run(String label, int helpers, long interval, final long latency,
+                            final Executor executor, AtomicInteger threadsStarted)
+            throws InterruptedException {
+        int threadsBefore = executor != null ? threadsStarted.get() : IabExecutors.asyncThreadsCreated();
+        final CountDownLatch done = new CountDownLatch(helpers * 2);
+        final AtomicInteger rejected = new AtomicInteger();
+        int baseThreads = Thread.activeCount();
+        int peakThreads = baseThreads;
+        long start = System.nanoTime();
+        for (int h = 0; h < helpers; ++h) {
+            final AsyncOperationQueue queue = new AsyncOperationQueue();
+            for (int op = 0; op < 2; ++op) {
+                boolean query = op == 0;
+                queue.submit(new AsyncOperationQueue.Operation(query ? "query" : "consume",
+                        query ? AsyncOperationQueue.PRIORITY_BACKGROUND : AsyncOperationQueue.PRIORITY_USER,
+                        query) {
+                    void start() {
+                        final AsyncOperationQueue.Operation self = this;
+                        Runnable work = new Runnable() {
+                            public void run() {
+                                try {
+                                    Thread.sleep(latency);
+                                }
+                                catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                                queue.finish(self);
+                                done.countDown();
+                            }
+                        };
+                        if (executor != null) {
+                            executor.execute(work);
+                        }
+                        else if (!IabExecutors.executeAsync(work)) {
+                            rejected.incrementAndGet();
+                            queue.finish(this);
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            peakThreads = Math.max(peakThreads, Thread.activeCount());
+            Thread.sleep(interval);
+        }
+        done.await();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        int threadsCreated = (executor != null ? threadsStarted.get() : IabExecutors.asyncThreadsCreated())
+                - threadsBefore;
+        System.out.println(String.format("%-24s %5d ms, threads created %d, peak threads +%d, rejected %d",
+                label, elapsed, threadsCreated, peakThreads - baseThreads, rejected.get()));
+    }
+}
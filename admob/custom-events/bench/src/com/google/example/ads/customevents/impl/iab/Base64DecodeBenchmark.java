@@ -0,0 +1,92 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.util.Random;
+
+/**
+ * Compares decoding with Base64.decode, which takes well-formed input eight
+ * characters at a time, against java.util.Base64, at several sizes. The strict
+ * character at a time decoder, which is all Base64 used to have, is measured by
+ * giving it input with a space after every seven characters, so that no block of
+ * eight is free of white space; java.util.Base64's MIME decoder gets the same input.
+ * Sizes are of the decoded data.
+ *
+ * Usage: Base64DecodeBenchmark [sizes in bytes...]
+ */
+public class Base64DecodeBenchmark {
+    public static void main(String[] args) throws Exception {
+        int[] sizes = { 64, 256, 4096, 1024 * 1024 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; ++i) sizes[i] = Integer.parseInt(args[i]);
+        }
+        System.out.println(IabExecutors.CPU_COUNT + " CPUs");
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            final byte[] encoded = Base64.encode(data).getBytes("US-ASCII");
+            final byte[] spaced = spaceEvery(7, encoded);
+            // Enough decodes per round to go through about 4 MB.
+            final int ops = Math.max(1, 4 * 1024 * 1024 / size);
+            final java.util.Base64.Decoder jdk = java.util.Base64.getDecoder();
+            final java.util.Base64.Decoder jdkMime = java.util.Base64.getMimeDecoder();
+
+            System.out.println(size + " bytes");
+            report("Base64.decode", size, ops, new Benchmarks.Task() {
+                public void run() throws Exception {
+                    for (int i = 0; i < ops; ++i) Benchmarks.sSink = Base64.decode(encoded);
+                }
+            });
+            report("Base64.decode, strict path", size, ops, new Benchmarks.Task() {
+                public void run() throws Exception {
+                    for (int i = 0; i < ops; ++i) Benchmarks.sSink = Base64.decode(spaced);
+                }
+            });
+            report("java.util.Base64", size, ops, new Benchmarks.Task() {
+                public void run() {
+                    for (int i = 0; i < ops; ++i) Benchmarks.sSink = jdk.decode(encoded);
+                }
+            });
+            report("java.util.Base64 MIME, spaced", size, ops, new Benchmarks.Task() {
+                public void run() {
+                    for (int i = 0; i < ops; ++i) Benchmarks.sSink = jdkMime.decode(spaced);
+                }
+            });
+        }
+    }
+
+    // Returns the input with a space after every n characters, leaving out the
+    // padding, which java.util.Base64 won't have split.
+    static byte[] spaceEvery(int n, byte[] in) {
+        int end = in.length;
+        while (end > 0 && in[end - 1] == '=') --end;
+        byte[] out = new byte[in.length + end / n];
+        int o = 0;
+        for (int i = 0; i < in.length; ++i) {
+            out[o++] = in[i];
+            if (i < end && i % n == n - 1) out[o++] = ' ';
+        }
+        return java.util.Arrays.copyOf(out, o);
+    }
+
+    // Prints the time per decode and the decoded bytes per second.
+    private static void report(String label, int size, int ops, Benchmarks.Task task) throws Exception {
+        double nanos = Benchmarks.nanosPerOp(ops, task);
+        System.out.println(String.format("  %-32s %12.2f us/op %10.1f MB/s",
+                label, nanos / 1000, size / nanos * 1e9 / (1024 * 1024)));
+    }
+}
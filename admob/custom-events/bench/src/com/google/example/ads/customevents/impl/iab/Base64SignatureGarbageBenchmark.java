@@ -0,0 +1,69 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.util.Random;
+
+/**
+ * Measures the garbage left by decoding a purchase signature, 256 bytes signed with
+ * a 2048-bit key, in each of the ways Base64 can decode a string: by copying it into
+ * a byte array first, as decode(String) used to; with decode(CharSequence), which
+ * reads the characters directly; and into a buffer the caller supplies and reuses,
+ * which leaves nothing behind. Times are reported too.
+ *
+ * Usage: Base64SignatureGarbageBenchmark
+ */
+public class Base64SignatureGarbageBenchmark {
+    private static final int SIGNATURE_SIZE = 256;
+    private static final int OPS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        byte[] signature = new byte[SIGNATURE_SIZE];
+        new Random(SIGNATURE_SIZE).nextBytes(signature);
+        final String encoded = Base64.encode(signature);
+        final byte[] buffer = new byte[Base64.decodedLength(encoded, 0, encoded.length())];
+
+        report("decode(String.getBytes())", new Benchmarks.Task() {
+            public void run() throws Exception {
+                for (int i = 0; i < OPS; ++i) {
+                    Benchmarks.sSink = Base64.decode(encoded.getBytes("US-ASCII"));
+                }
+            }
+        });
+        report("decode(CharSequence)", new Benchmarks.Task() {
+            public void run() throws Exception {
+                for (int i = 0; i < OPS; ++i) Benchmarks.sSink = Base64.decode((CharSequence) encoded);
+            }
+        });
+        report("decode into a caller's buffer", new Benchmarks.Task() {
+            public void run() throws Exception {
+                int length = 0;
+                for (int i = 0; i < OPS; ++i) {
+                    length += Base64.decode(encoded, 0, encoded.length(), buffer, 0);
+                }
+                Benchmarks.sSink = length;
+            }
+        });
+    }
+
+    // Prints the time and the bytes allocated per decode.
+    private static void report(String label, Benchmarks.Task task) throws Exception {
+        double nanos = Benchmarks.nanosPerOp(OPS, task);
+        double bytes = Benchmarks.bytesPerOp(OPS, task);
+        System.out.println(String.format("  %-32s %10.2f us/op %10.0f bytes/op",
+                label, nanos / 1000, bytes));
+    }
+}
@@ -0,0 +1,140 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * What the benchmarks share: a timing loop, and signed purchase data to feed the
+ * code being measured.
+ */
+final class Benchmarks {
+    private static final int WARMUP_ROUNDS = 10;
+    private static final long WARMUP_NANOS = 2000000000L;
+    private static final int MEASURED_ROUNDS = 15;
+
+    /** Something to measure. Each run does the same amount of work. */
+    interface Task {
+        void run() throws Exception;
+    }
+
+    // Results are stored here so the JIT can't drop the work that produced them.
+    static volatile Object sSink;
+
+    private Benchmarks() { }
+
+    /**
+     * Runs the task for a while to warm up, then times it over several rounds and
+     * returns the median time of a round, in nanoseconds, divided by ops. Quick tasks
+     * need many rounds before the JIT has compiled all of them, so warming up takes
+     * at least two seconds.
+     */
+    static double nanosPerOp(int ops, Task task) throws Exception {
+        long warmupStart = System.nanoTime();
+        for (int i = 0; i < WARMUP_ROUNDS || System.nanoTime() - warmupStart < WARMUP_NANOS; ++i) {
+            task.run();
+        }
+        long[] rounds = new long[MEASURED_ROUNDS];
+        for (int i = 0; i < MEASURED_ROUNDS; ++i) {
+            long start = System.nanoTime();
+            task.run();
+            rounds[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(rounds);
+        return (double) rounds[MEASURED_ROUNDS / 2] / ops;
+    }
+
+    /**
+     * Runs the task once more and returns the bytes it allocated, divided by ops, or
+     * -1 if the JVM doesn't count allocations per thread.
+     */
+    static double bytesPerOp(int ops, Task task) throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        task.run();
+        return (double) (threads.getThreadAllocatedBytes(id) - before) / ops;
+    }
+
+    /** Generates the developer key pair purchases are signed with. */
+    static KeyPair newKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+
+    /** Returns the public key in the base64 form IabHelper is given. */
+    static String encodePublicKey(KeyPair keys) {
+        return Base64.encode(keys.getPublic().getEncoded());
+    }
+
+    /** Returns purchase JSON in the form getPurchases() returns, for product sku_n. */
+    static String purchaseJson(int n) {
+        return "{\"orderId\":\"12999763169054705758." + (1371079406387615L + n) + "\","
+                + "\"packageName\":\"com.google.example.ads.customevents\","
+                + "\"productId\":\"sku_" + n + "\",\"purchaseTime\":" + (1345678900000L + n) + ","
+                + "\"purchaseState\":0,\"developerPayload\":\"bGoa+V7g/yqDXvKRqq+JTFn4uQZbPiQJo4pf9RzJ\","
+                + "\"purchaseToken\":\"rojeslcdyyiapnqcynkjyyjh." + n + "\"}";
+    }
+
+    /** Returns count purchases, as {@link #purchaseJson} strings. */
+    static List<String> purchaseData(int count) {
+        List<String> data = new ArrayList<String>(count);
+        for (int i = 0; i < count; ++i) data.add(purchaseJson(i));
+        return data;
+    }
+
+    /** Returns SKU details JSON in the form getSkuDetails() returns, for product sku_n. */
+    static String skuDetailsJson(int n) {
+        return "{\"productId\":\"sku_" + n + "\",\"type\":\"inapp\",\"price\":\"\u20ac" + (n % 100) + ".99\","
+                + "\"price_amount_micros\":" + ((n % 100) * 1000000L + 990000) + ","
+                + "\"price_currency_code\":\"EUR\",\"title\":\"Gem pack " + n + " (Example App)\","
+                + "\"description\":\"A pack of \\\"shiny\\\" gems for your collection.\"}";
+    }
+
+    /** Returns count SKU details, as {@link #skuDetailsJson} strings. */
+    static List<String> skuDetailsData(int count) {
+        List<String> data = new ArrayList<String>(count);
+        for (int i = 0; i < count; ++i) data.add(skuDetailsJson(i));
+        return data;
+    }
+
+    /** Signs each string with the private key, as the billing service does. */
+    static List<String> sign(KeyPair keys, List<String> data) throws Exception {
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        List<String> signatures = new ArrayList<String>(data.size());
+        for (String d : data) {
+            signature.initSign(keys.getPrivate());
+            signature.update(d.getBytes("UTF-8"));
+            signatures.add(Base64.encode(signature.sign()));
+        }
+        return signatures;
+    }
+
+    /** Prints a result line: a label and the time per operation in microseconds. */
+    static void report(String label, double nanosPerOp) {
+        System.out.println(String.format("%-48s %10.2f us/op", label, nanosPerOp / 1000));
+    }
+}
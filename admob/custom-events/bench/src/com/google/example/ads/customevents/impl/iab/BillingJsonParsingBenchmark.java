@@ -0,0 +1,82 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the throughput of reading large purchase and SKU detail lists: with
+ * org.json, which builds a tree for every string, and with the single pass of
+ * {@link BillingJsonReader} that {@link JsonFieldIndex} makes to find the known
+ * fields. Neither decodes any field, so this is the cost of the parse alone. Besides
+ * the usual purchases, the lists include purchases with a developer payload of a
+ * few kilobytes that is full of escapes, which is the worst case for both parsers.
+ *
+ * Like LazyPurchaseBenchmark, this needs an org.json jar on the class path.
+ *
+ * Usage: BillingJsonParsingBenchmark [items]
+ */
+public class BillingJsonParsingBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        List<String> payloads = new ArrayList<String>(count);
+        for (int i = 0; i < count; ++i) payloads.add(purchaseWithLongPayload(i));
+
+        run("purchases", Benchmarks.purchaseData(count), Purchase.KEYS);
+        run("purchases with long payloads", payloads, Purchase.KEYS);
+        run("SKU details", Benchmarks.skuDetailsData(count), SkuDetails.KEYS);
+    }
+
+    private static void run(String label, final List<String> list, final String[] keys)
+            throws Exception {
+        long chars = 0;
+        for (String json : list) chars += json.length();
+        System.out.println(list.size() + " " + label + ", " + chars / 1024 + " KB");
+        report("org.json", list.size(), chars, new Benchmarks.Task() {
+            public void run() throws Exception {
+                for (String json : list) Benchmarks.sSink = new JSONObject(json);
+            }
+        });
+        report("BillingJsonReader", list.size(), chars, new Benchmarks.Task() {
+            public void run() throws Exception {
+                for (String json : list) Benchmarks.sSink = new JsonFieldIndex(json, keys);
+            }
+        });
+    }
+
+    // Returns purchase JSON whose developer payload is a few KB of quoted, escaped text.
+    static String purchaseWithLongPayload(int n) {
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 64; ++i) {
+            payload.append("{\\\"level\\\":").append(i).append(",\\\"path\\\":\\\"a\\/b\\/c\\\"}\\n");
+        }
+        String json = Benchmarks.purchaseJson(n);
+        return json.substring(0, json.length() - 1) + ",\"developerPayload\":\"" + payload + "\"}";
+    }
+
+    // Prints the time per item, the characters read per second and the bytes
+    // allocated per item.
+    private static void report(String label, int count, long chars, Benchmarks.Task task)
+            throws Exception {
+        double nanos = Benchmarks.nanosPerOp(count, task);
+        double bytes = Benchmarks.bytesPerOp(count, task);
+        System.out.println(String.format("  %-20s %8.2f us/item %8.1f MB/s %8.0f bytes/item",
+                label, nanos / 1000, chars / (nanos * count) * 1e9 / (1024 * 1024), bytes));
+    }
+}
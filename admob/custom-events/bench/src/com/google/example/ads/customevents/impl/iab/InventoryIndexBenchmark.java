@@ -0,0 +1,94 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures listing the owned SKUs of one item type in inventories of tens of
+ * thousands of purchases, one in a hundred of them a subscription: through the
+ * per-type index, and by going through every purchase and comparing its type, as
+ * getAllOwnedSkus(itemType) used to. Also measures what keeping the index costs when
+ * the inventory is built.
+ *
+ * Usage: InventoryIndexBenchmark [purchases...]
+ */
+public class InventoryIndexBenchmark {
+    public static void main(String[] args) throws Exception {
+        int[] sizes = { 10000, 50000 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; ++i) sizes[i] = Integer.parseInt(args[i]);
+        }
+        for (int size : sizes) {
+            final List<Purchase> purchases = new ArrayList<Purchase>(size);
+            for (int i = 0; i < size; ++i) {
+                String itemType = i % 100 == 0 ? IabHelper.ITEM_TYPE_SUBS : IabHelper.ITEM_TYPE_INAPP;
+                purchases.add(Purchase.parse(itemType, Benchmarks.purchaseJson(i), ""));
+            }
+            Inventory.Builder builder = new Inventory.Builder();
+            for (Purchase p : purchases) builder.addPurchase(p);
+            final Inventory inv = builder.build();
+
+            System.out.println(size + " purchases");
+            for (final String itemType : new String[] { IabHelper.ITEM_TYPE_SUBS, IabHelper.ITEM_TYPE_INAPP }) {
+                Benchmarks.report("index, " + itemType, Benchmarks.nanosPerOp(1, new Benchmarks.Task() {
+                    public void run() {
+                        Benchmarks.sSink = count(inv.getAllOwnedSkus(itemType));
+                    }
+                }));
+                Benchmarks.report("scan, " + itemType, Benchmarks.nanosPerOp(1, new Benchmarks.Task() {
+                    public void run() {
+                        Benchmarks.sSink = count(scan(inv, itemType));
+                    }
+                }));
+            }
+            Benchmarks.report("build, with the index", Benchmarks.nanosPerOp(1, new Benchmarks.Task() {
+                public void run() {
+                    Inventory.Builder builder = new Inventory.Builder();
+                    for (Purchase p : purchases) builder.addPurchase(p);
+                    Benchmarks.sSink = builder.build();
+                }
+            }));
+            Benchmarks.report("build, purchase map only", Benchmarks.nanosPerOp(1, new Benchmarks.Task() {
+                public void run() {
+                    Map<String,Purchase> map = new HashMap<String,Purchase>();
+                    for (Purchase p : purchases) map.put(p.getSku(), p);
+                    Benchmarks.sSink = map;
+                }
+            }));
+        }
+    }
+
+    // Lists the owned SKUs of a type the way getAllOwnedSkus(itemType) used to.
+    static List<String> scan(Inventory inv, String itemType) {
+        List<String> result = new ArrayList<String>();
+        for (Purchase p : inv.mState.get().mPurchaseMap.values()) {
+            if (p.getItemType().equals(itemType)) result.add(p.getSku());
+        }
+        return result;
+    }
+
+    // Goes through the SKUs, as a caller would.
+    static int count(Iterable<String> skus) {
+        int n = 0;
+        for (String sku : skus) n += sku.length();
+        return n;
+    }
+}
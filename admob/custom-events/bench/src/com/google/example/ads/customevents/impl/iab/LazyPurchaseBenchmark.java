@@ -0,0 +1,122 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Measures the time and memory it takes to create the purchases and SKU details of
+ * an inventory of a thousand items: by building a JSONObject for each and reading
+ * every field, as the Purchase and SkuDetails constructors used to, and lazily, with
+ * only the getters that InAppPurchase calls and with all of them.
+ *
+ * The org.json classes in android.jar are stubs, so to run this on a desktop JVM,
+ * put an org.json jar (for example the reference implementation from json.org)
+ * ahead of android.jar on the class path.
+ *
+ * Usage: LazyPurchaseBenchmark [items]
+ */
+public class LazyPurchaseBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final List<String> purchases = Benchmarks.purchaseData(count);
+        final List<String> details = Benchmarks.skuDetailsData(count);
+        final String[] fields = new String[8];
+
+        System.out.println(count + " purchases");
+        report("org.json, every field", count, new Benchmarks.Task() {
+            public void run() throws Exception {
+                for (String json : purchases) {
+                    JSONObject o = new JSONObject(json);
+                    fields[0] = o.optString("orderId");
+                    fields[1] = o.optString("packageName");
+                    fields[2] = o.optString("productId");
+                    fields[3] = o.optString("developerPayload");
+                    fields[4] = o.optString("token", o.optString("purchaseToken"));
+                    Benchmarks.sSink = o.optLong("purchaseTime") + o.optInt("purchaseState");
+                }
+            }
+        });
+        report("lazy, getSku() and getToken()", count, new Benchmarks.Task() {
+            public void run() throws Exception {
+                for (String json : purchases) {
+                    Purchase p = Purchase.parse(IabHelper.ITEM_TYPE_INAPP, json, "");
+                    fields[0] = p.getSku();
+                    fields[1] = p.getToken();
+                }
+            }
+        });
+        report("lazy, every getter", count, new Benchmarks.Task() {
+            public void run() throws Exception {
+                for (String json : purchases) {
+                    Purchase p = Purchase.parse(IabHelper.ITEM_TYPE_INAPP, json, "");
+                    fields[0] = p.getOrderId();
+                    fields[1] = p.getPackageName();
+                    fields[2] = p.getSku();
+                    fields[3] = p.getDeveloperPayload();
+                    fields[4] = p.getToken();
+                    Benchmarks.sSink = p.getPurchaseTime() + p.getPurchaseState();
+                }
+            }
+        });
+
+        System.out.println(count + " SKU details");
+        report("org.json, every field", count, new Benchmarks.Task() {
+            public void run() throws Exception {
+                for (String json : details) {
+                    JSONObject o = new JSONObject(json);
+                    fields[0] = o.optString("productId");
+                    fields[1] = o.optString("type");
+                    fields[2] = o.optString("price");
+                    fields[3] = o.optString("title");
+                    fields[4] = o.optString("description");
+                }
+            }
+        });
+        report("lazy, getSku() and getPrice()", count, new Benchmarks.Task() {
+            public void run() throws Exception {
+                for (String json : details) {
+                    SkuDetails d = SkuDetails.parse(IabHelper.ITEM_TYPE_INAPP, json);
+                    fields[0] = d.getSku();
+                    fields[1] = d.getPrice();
+                }
+            }
+        });
+        report("lazy, every getter", count, new Benchmarks.Task() {
+            public void run() throws Exception {
+                for (String json : details) {
+                    SkuDetails d = SkuDetails.parse(IabHelper.ITEM_TYPE_INAPP, json);
+                    fields[0] = d.getSku();
+                    fields[1] = d.getType();
+                    fields[2] = d.getPrice();
+                    fields[3] = d.getTitle();
+                    fields[4] = d.getDescription();
+                }
+            }
+        });
+        Benchmarks.sSink = fields;
+    }
+
+    // Prints the time for the whole inventory and the bytes allocated per item.
+    private static void report(String label, int count, Benchmarks.Task task) throws Exception {
+        double nanos = Benchmarks.nanosPerOp(1, task);
+        double bytes = Benchmarks.bytesPerOp(count, task);
+        System.out.println(String.format("  %-32s %10.1f us %10.0f bytes/item",
+                label, nanos / 1000, bytes));
+    }
+}
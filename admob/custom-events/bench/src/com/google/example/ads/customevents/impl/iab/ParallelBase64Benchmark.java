@@ -0,0 +1,113 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how much encoding and decoding multi-megabyte arrays gains from being
+ * split across the verification pool, which Base64 does for arrays of at least
+ * {@link Base64#PARALLEL_THRESHOLD} bytes, one chunk per CPU. The serial figures
+ * come from the same methods called on pieces below the threshold, which each
+ * run on the calling thread. Encoding breaks lines at 76 characters, and the pieces
+ * are whole lines so that the output is the same.
+ *
+ * Usage: ParallelBase64Benchmark [sizes in megabytes...]
+ */
+public class ParallelBase64Benchmark {
+    private static final int LINE_LENGTH = 76;
+    // Bytes in one line of output, and the size of the serial pieces in whole lines.
+    private static final int LINE_BYTES = LINE_LENGTH / 4 * 3;
+    private static final int PIECE_LINES = Base64.PARALLEL_THRESHOLD / 2 / LINE_LENGTH;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = { 2, 8, 32 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; ++i) sizes[i] = Integer.parseInt(args[i]);
+        }
+        System.out.println(IabExecutors.CPU_COUNT + " CPUs");
+        for (int megabytes : sizes) {
+            final byte[] data = new byte[megabytes * 1024 * 1024];
+            new Random(megabytes).nextBytes(data);
+            final byte[] encoded = new byte[Base64.encodedLength(data.length, LINE_LENGTH)];
+            final byte[] decoded = new byte[data.length];
+
+            // Both ways must give the same output.
+            byte[] serial = new byte[encoded.length];
+            encodeSerially(data, serial);
+            Base64.encode(data, 0, data.length, encoded, 0, Base64.ALPHABET, LINE_LENGTH);
+            check(Arrays.equals(serial, encoded));
+            check(decodeSerially(encoded, decoded) == data.length);
+            check(Arrays.equals(data, decoded));
+            check(Base64.decode(encoded, 0, encoded.length, decoded, 0) == data.length);
+            check(Arrays.equals(data, decoded));
+
+            System.out.println(megabytes + " MB");
+            report("encode, serial pieces", data.length, new Benchmarks.Task() {
+                public void run() {
+                    encodeSerially(data, encoded);
+                }
+            });
+            report("encode, parallel", data.length, new Benchmarks.Task() {
+                public void run() {
+                    Base64.encode(data, 0, data.length, encoded, 0, Base64.ALPHABET, LINE_LENGTH);
+                }
+            });
+            report("decode, serial pieces", data.length, new Benchmarks.Task() {
+                public void run() throws Exception {
+                    decodeSerially(encoded, decoded);
+                }
+            });
+            report("decode, parallel", data.length, new Benchmarks.Task() {
+                public void run() throws Exception {
+                    Base64.decode(encoded, 0, encoded.length, decoded, 0);
+                }
+            });
+        }
+    }
+
+    static void encodeSerially(byte[] data, byte[] dest) {
+        int pieceBytes = PIECE_LINES * LINE_BYTES;
+        int destOff = 0;
+        for (int off = 0; off < data.length; off += pieceBytes) {
+            int len = Math.min(pieceBytes, data.length - off);
+            destOff += Base64.encode(data, off, len, dest, destOff, Base64.ALPHABET, LINE_LENGTH);
+        }
+    }
+
+    static int decodeSerially(byte[] encoded, byte[] dest) throws Base64DecoderException {
+        int pieceChars = PIECE_LINES * (LINE_LENGTH + 1);
+        int destOff = 0;
+        for (int off = 0; off < encoded.length; off += pieceChars) {
+            int len = Math.min(pieceChars, encoded.length - off);
+            destOff += Base64.decode(encoded, off, len, dest, destOff);
+        }
+        return destOff;
+    }
+
+    // Prints the time per run and the data bytes per second.
+    private static void report(String label, int size, Benchmarks.Task task) throws Exception {
+        double nanos = Benchmarks.nanosPerOp(1, task);
+        System.out.println(String.format("  %-24s %10.2f ms %10.1f MB/s",
+                label, nanos / 1e6, size / nanos * 1e9 / (1024 * 1024)));
+    }
+
+    static void check(boolean ok) {
+        if (!ok) throw new AssertionError("output differs");
+    }
+}
@@ -0,0 +1,86 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures how verifying and parsing a page of purchases scales with the number of
+ * threads. The page is split into as many slices as there are threads and run with
+ * {@link IabExecutors#invokeAll}, the way IabHelper.verifyPurchases spreads a page
+ * over the verification pool: the calling thread takes the first slice and a pool
+ * of the remaining threads the others.
+ *
+ * Usage: ParallelVerificationBenchmark [purchases [max threads]]
+ */
+public class ParallelVerificationBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : IabExecutors.CPU_COUNT;
+        KeyPair keys = Benchmarks.newKeyPair();
+        final String key = Benchmarks.encodePublicKey(keys);
+        final List<String> data = Benchmarks.purchaseData(count);
+        final List<String> signatures = Benchmarks.sign(keys, data);
+
+        System.out.println(count + " purchases, " + IabExecutors.CPU_COUNT + " CPUs");
+        double single = 0;
+        for (int threads = 1; threads <= maxThreads; ++threads) {
+            final int slices = threads;
+            final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads - 1),
+                    IabExecutors.newThreadFactory("bench-verify"));
+            double nanos = Benchmarks.nanosPerOp(count, new Benchmarks.Task() {
+                public void run() throws Exception {
+                    Benchmarks.sSink = verify(pool, key, data, signatures, slices);
+                }
+            });
+            pool.shutdown();
+            if (threads == 1) single = nanos;
+            System.out.println(String.format("%2d threads %10.2f us/purchase %10.0f purchases/s  x%.2f",
+                    threads, nanos / 1000, 1e9 / nanos, single / nanos));
+        }
+    }
+
+    // Verifies and parses the purchases in the given number of slices.
+    static Purchase[] verify(ExecutorService pool, final String key, final List<String> data,
+                             final List<String> signatures, int slices) throws Exception {
+        final Purchase[] purchases = new Purchase[data.size()];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(slices);
+        for (int slice = 0; slice < slices; ++slice) {
+            final int from = (int) ((long) purchases.length * slice / slices);
+            final int to = (int) ((long) purchases.length * (slice + 1) / slices);
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    SignatureVerifier verifier = Security.getVerifier(key);
+                    for (int i = from; i < to; ++i) {
+                        if (!verifier.verify(data.get(i), signatures.get(i))) {
+                            throw new AssertionError("verification failed");
+                        }
+                        purchases[i] = Purchase.parse(IabHelper.ITEM_TYPE_INAPP, data.get(i),
+                                signatures.get(i));
+                    }
+                    return null;
+                }
+            });
+        }
+        IabExecutors.invokeAll(pool, tasks);
+        return purchases;
+    }
+}
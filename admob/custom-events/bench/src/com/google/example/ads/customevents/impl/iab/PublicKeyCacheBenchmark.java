@@ -0,0 +1,63 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.List;
+
+/**
+ * Measures the cost per purchase of verifying an inventory of a few hundred owned
+ * items, with the public key parsed for every purchase (as Security.verifyPurchase
+ * used to) and with the verifier cached per key.
+ *
+ * Usage: PublicKeyCacheBenchmark [purchases]
+ */
+public class PublicKeyCacheBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        KeyPair keys = Benchmarks.newKeyPair();
+        final String key = Benchmarks.encodePublicKey(keys);
+        final List<String> data = Benchmarks.purchaseData(count);
+        final List<String> signatures = Benchmarks.sign(keys, data);
+
+        System.out.println(count + " purchases");
+        Benchmarks.report("parse key only", Benchmarks.nanosPerOp(count, new Benchmarks.Task() {
+            public void run() {
+                for (int i = 0; i < count; ++i) Benchmarks.sSink = Security.generatePublicKey(key);
+            }
+        }));
+        Benchmarks.report("parse key and verify, per purchase", Benchmarks.nanosPerOp(count, new Benchmarks.Task() {
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    PublicKey publicKey = Security.generatePublicKey(key);
+                    check(Security.verify(publicKey, data.get(i), signatures.get(i)));
+                }
+            }
+        }));
+        Benchmarks.report("cached verifier", Benchmarks.nanosPerOp(count, new Benchmarks.Task() {
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    check(Security.getVerifier(key).verify(data.get(i), signatures.get(i)));
+                }
+            }
+        }));
+    }
+
+    static void check(boolean verified) {
+        if (!verified) throw new AssertionError("verification failed");
+    }
+}
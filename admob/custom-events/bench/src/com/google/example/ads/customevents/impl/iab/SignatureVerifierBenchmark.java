@@ -0,0 +1,94 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.List;
+
+/**
+ * Measures the throughput of verifying a large purchase list against one parsed
+ * key: with a new Signature and a getBytes() copy per purchase (Security.verify,
+ * the original code), and with a {@link SignatureVerifier}, given strings, byte
+ * arrays or buffers.
+ *
+ * Usage: SignatureVerifierBenchmark [purchases]
+ */
+public class SignatureVerifierBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        KeyPair keys = Benchmarks.newKeyPair();
+        final PublicKey publicKey = keys.getPublic();
+        final List<String> data = Benchmarks.purchaseData(count);
+        final List<String> signatures = Benchmarks.sign(keys, data);
+        final SignatureVerifier verifier = new SignatureVerifier(publicKey);
+
+        // The same purchases already in binary form, for the byte[] and ByteBuffer overloads.
+        final byte[][] dataBytes = new byte[count][];
+        final byte[][] signatureBytes = new byte[count][];
+        final ByteBuffer[] buffers = new ByteBuffer[count];
+        for (int i = 0; i < count; ++i) {
+            dataBytes[i] = data.get(i).getBytes("UTF-8");
+            signatureBytes[i] = Base64.decode(signatures.get(i));
+            buffers[i] = ByteBuffer.allocateDirect(dataBytes[i].length);
+            buffers[i].put(dataBytes[i]).flip();
+        }
+
+        System.out.println(count + " purchases");
+        report("Signature per purchase (Security.verify)", count, new Benchmarks.Task() {
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    check(Security.verify(publicKey, data.get(i), signatures.get(i)));
+                }
+            }
+        });
+        report("SignatureVerifier, strings", count, new Benchmarks.Task() {
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    check(verifier.verify(data.get(i), signatures.get(i)));
+                }
+            }
+        });
+        report("SignatureVerifier, byte arrays", count, new Benchmarks.Task() {
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    check(verifier.verify(dataBytes[i], 0, dataBytes[i].length,
+                            signatureBytes[i], 0, signatureBytes[i].length));
+                }
+            }
+        });
+        report("SignatureVerifier, direct buffers", count, new Benchmarks.Task() {
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    buffers[i].rewind();
+                    check(verifier.verify(buffers[i], signatureBytes[i]));
+                }
+            }
+        });
+    }
+
+    // Prints the time per purchase and the number of purchases verified per second.
+    private static void report(String label, int count, Benchmarks.Task task) throws Exception {
+        double nanos = Benchmarks.nanosPerOp(count, task);
+        System.out.println(String.format("%-48s %10.2f us/op %10.0f purchases/s",
+                label, nanos / 1000, 1e9 / nanos));
+    }
+
+    static void check(boolean verified) {
+        if (!verified) throw new AssertionError("verification failed");
+    }
+}
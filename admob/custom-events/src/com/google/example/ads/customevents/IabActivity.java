@@ -31,6 +31,10 @@ public class IabActivity extends Activity {
     return iabHelper;
   }
 
+  /**
+   * Sets the in-app billing helper that activity results are passed to. Whoever created the
+   * helper remains responsible for disposing of it.
+   */
   public void setIabHelper(IabHelper iabHelper) {
     this.iabHelper = iabHelper;
   }
@@ -20,6 +20,8 @@ import com.google.ads.mediation.customevent.CustomEventBanner;
 import com.google.ads.mediation.customevent.CustomEventBannerListener;
 import com.google.example.ads.customevents.IabActivity;
 import com.google.example.ads.customevents.Utils;
+import com.google.example.ads.customevents.impl.iab.IabException;
+import com.google.example.ads.customevents.impl.iab.IabFuture;
 import com.google.example.ads.customevents.impl.iab.IabHelper;
 import com.google.example.ads.customevents.impl.iab.IabResult;
 import com.google.example.ads.customevents.impl.iab.Inventory;
@@ -37,6 +39,8 @@ import android.widget.ImageView;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
+import java.util.List;
+
 /**
  * Custom event that invokes an in-app purchase request if clicked. If the in-app purchase is made,
  * the custom event will no longer serve the in-app purchase request, unless the user clears the
@@ -62,6 +66,16 @@ public class InAppPurchase implements CustomEventBanner {
   /** Arbitrary request code for the purchase flow. */
   private static final int RC_REQUEST = 10001;
 
+  /** How long an inventory query is reused for later ad requests, in milliseconds. */
+  private static final long INVENTORY_CACHE_TTL_MS = 60 * 1000;
+
+  /**
+   * How long an ad request may wait on the billing service before giving up, in milliseconds.
+   * Without a deadline, a billing service that hangs would keep AdMob Mediation from moving on
+   * to the next network.
+   */
+  private static final long AD_REQUEST_TIMEOUT_MS = 5 * 1000;
+
   /** Key used for shared preferences to store whether or not the test purchase has been made. */
   public static final String SHARED_PREFERENCES_NAME_TEST_PURCHASE = "testPurchase";
 
@@ -74,6 +88,12 @@ public class InAppPurchase implements CustomEventBanner {
   /** The Custom event listener used to notify AdMob Mediation of ad events. */
   private CustomEventBannerListener bannerListener;
 
+  /**
+   * Whether the current ad request was already answered from the saved inventory snapshot, in
+   * which case the live inventory query only reconciles the purchase state. Reset by each request.
+   */
+  private boolean answeredFromSnapshot;
+
   /**
    * Requests a banner ad. This method is called by AdMob Mediation when it selects your custom
    * event network and asks for an ad.
@@ -86,7 +106,11 @@ public class InAppPurchase implements CustomEventBanner {
                               AdSize adSize,
                               MediationAdRequest mediationAdRequest,
                               Object customEventExtra) {
+    // A custom event may be asked for another ad; that request replaces whatever the previous one
+    // was still doing.
+    releaseIabHelper();
     this.bannerListener = bannerListener;
+    answeredFromSnapshot = false;
     try {
       iabActivity = (IabActivity) activity;
     } catch (ClassCastException exception) {
@@ -100,21 +124,79 @@ public class InAppPurchase implements CustomEventBanner {
       Utils.logAndToast(activity, LOGTAG, "Purchase made. No need to show the ad.");
       bannerListener.onFailedToReceiveAd();
     } else {
+      // The inventory saved on a previous run can tell us right away that the purchase was made,
+      // without waiting for the billing service. The live query below still consumes it.
+      Inventory snapshot = IabHelper.loadInventorySnapshot(activity, BASE_64_ENCODED_PUBLIC_KEY);
+      if (snapshot != null && snapshot.hasPurchase(SKU_TEST_SUCCESSFUL_PURCHASE)) {
+        Utils.logAndToast(activity, LOGTAG, "Purchase found in saved inventory. Skipping the ad.");
+        answeredFromSnapshot = true;
+        bannerListener.onFailedToReceiveAd();
+      }
+      // What this request was told, whatever later requests are.
+      final boolean requestAnswered = answeredFromSnapshot;
+
       // Start the in-app billing flow.
       iabHelper = new IabHelper(activity, BASE_64_ENCODED_PUBLIC_KEY);
       iabActivity.setIabHelper(iabHelper);
       iabHelper.enableDebugLogging(true);
-      iabHelper.startSetup(new IabHelper.OnIabSetupFinishedListener() {
-        @Override
-        public void onIabSetupFinished(IabResult result) {
-          if (!result.isSuccess()) {
-            Utils.logAndToast(activity, LOGTAG, "Problem setting up in-app billing: " + result);
-            bannerListener.onFailedToReceiveAd();
-            return;
-          }
-          iabHelper.queryInventoryAsync(mGotInventoryListener);
-        }
-      });
+      iabHelper.setInventoryCacheTtl(INVENTORY_CACHE_TTL_MS);
+      iabHelper.enableInventorySnapshot(true);
+      // Set up, check the inventory and consume a leftover purchase without bouncing through the
+      // main thread; only the outcome is delivered there. If it all takes too long, the whole
+      // chain is abandoned and the ad request fails.
+      final IabHelper helper = iabHelper;
+      helper.startSetup()
+          .thenCompose(new IabFuture.Function<IabResult, IabFuture<Inventory>>() {
+            @Override
+            public IabFuture<Inventory> apply(IabResult setupResult) {
+              return helper.queryInventoryAsync(true, (List<String>) null);
+            }
+          }, IabFuture.directExecutor())
+          .thenCompose(new IabFuture.Function<Inventory, IabFuture<Purchase>>() {
+            @Override
+            public IabFuture<Purchase> apply(Inventory inventory) {
+              Log.d(LOGTAG, "Query inventory finished.");
+              // Did we already make the purchase?
+              Purchase testPurchase = inventory.getPurchase(SKU_TEST_SUCCESSFUL_PURCHASE);
+              if (testPurchase == null || !verifyDeveloperPayload(testPurchase)) {
+                return IabFuture.completed(null);
+              }
+              Log.d(LOGTAG, "Purchase made, but wasn't previously consumed. Consuming.");
+              return helper.consumeAsync(testPurchase);
+            }
+          }, IabFuture.backgroundExecutor())
+          .withTimeout(AD_REQUEST_TIMEOUT_MS)
+          .addCallback(new IabFuture.Callback<Purchase>() {
+            @Override
+            public void onSuccess(Purchase consumed) {
+              if (iabHelper != helper) {
+                return;  // Destroyed or replaced by a later request in the meantime.
+              }
+              if (consumed != null) {
+                Utils.logAndToast(iabActivity, LOGTAG,
+                    "Purchase made, but wasn't previously consumed. Consumed it; moving on.");
+                mConsumeFinishedCallback.onSuccess(consumed);
+              } else if (requestAnswered) {
+                // The saved inventory was out of date; the next ad request will show the ad.
+                Log.d(LOGTAG, "Purchase from saved inventory is gone.");
+              } else {
+                Utils.logAndToast(iabActivity, LOGTAG,
+                    "Has not made purchase. Set up in-app purchase ad.");
+                bannerListener.onReceivedAd(createInAppPurchaseAd());
+              }
+            }
+
+            @Override
+            public void onFailure(IabException e) {
+              if (iabHelper != helper) {
+                return;  // Destroyed or replaced by a later request in the meantime.
+              }
+              Utils.logAndToast(activity, LOGTAG, "Problem with in-app billing: " + e.getResult());
+              if (!requestAnswered) {
+                bannerListener.onFailedToReceiveAd();
+              }
+            }
+          }, IabFuture.mainThreadExecutor());
     }
   }
 
@@ -149,79 +231,52 @@ public class InAppPurchase implements CustomEventBanner {
           // verifyDeveloperPayload() for more info. Since this is a sample, we just use an empty
           // string, but on a production app you should carefully generate this.
           String payload = "";
-          iabHelper.launchPurchaseFlow(iabActivity, SKU_TEST_SUCCESSFUL_PURCHASE, RC_REQUEST,
-              mPurchaseFinishedListener, payload);
+          final IabHelper helper = iabHelper;
+          if (helper == null) {
+            return;  // Destroyed in the meantime.
+          }
+          // A later ad may have installed its own helper; the result of this purchase flow has to
+          // come back to ours.
+          iabActivity.setIabHelper(helper);
+          helper.launchPurchaseFlow(iabActivity, SKU_TEST_SUCCESSFUL_PURCHASE,
+              IabHelper.ITEM_TYPE_INAPP, RC_REQUEST, payload)
+              .thenCompose(new IabFuture.Function<Purchase, IabFuture<Purchase>>() {
+                @Override
+                public IabFuture<Purchase> apply(Purchase purchase) throws IabException {
+                  Log.d(LOGTAG, "Purchase finished: " + purchase);
+                  if (!verifyDeveloperPayload(purchase)) {
+                    throw new IabException(IabHelper.IABHELPER_VERIFICATION_FAILED,
+                        "Authenticity verification failed.");
+                  }
+                  Log.d(LOGTAG, "Purchase successful.");
+                  // Bought test purchase
+                  saveTestPurchase();
+                  Log.d(LOGTAG, "Thank you for making the test purchase!");
+                  return helper.consumeAsync(purchase);
+                }
+              }, IabFuture.mainThreadExecutor())
+              .addCallback(mConsumeFinishedCallback, IabFuture.mainThreadExecutor());
         }
       }
     });
     return layout;
   }
 
-  // Called when we finish querying the items and subscriptions we own.
-  IabHelper.QueryInventoryFinishedListener mGotInventoryListener =
-      new IabHelper.QueryInventoryFinishedListener() {
+  // Called on the main thread when the test purchase has been consumed, or the purchase or
+  // consumption failed.
+  IabFuture.Callback<Purchase> mConsumeFinishedCallback = new IabFuture.Callback<Purchase>() {
     @Override
-    public void onQueryInventoryFinished(IabResult result, Inventory inventory) {
-      Log.d(LOGTAG, "Query inventory finished.");
-      if (result.isFailure()) {
-        Log.e(LOGTAG, "Failed to query inventory: " + result);
+    public void onSuccess(Purchase purchase) {
+      Log.d(LOGTAG, "Consumption successful. Provisioning.");
+      saveTestPurchase();
+      if (!answeredFromSnapshot) {
         bannerListener.onFailedToReceiveAd();
-        return;
-      }
-      // Did we already make the purchase?
-      Purchase testPurchase = inventory.getPurchase(SKU_TEST_SUCCESSFUL_PURCHASE);
-      boolean hasTestPurchaseInventory =
-          (testPurchase != null && verifyDeveloperPayload(testPurchase));
-      if (hasTestPurchaseInventory) {
-        Utils.logAndToast(iabActivity, LOGTAG,
-            "Purchase made, but wasn't previously consumed. Consume and move on to next network.");
-        iabHelper.consumeAsync(testPurchase, mConsumeFinishedListener);
-      } else {
-        Utils.logAndToast(iabActivity, LOGTAG, "Has not made purchase. Set up in-app purchase ad.");
-        bannerListener.onReceivedAd(createInAppPurchaseAd());
-      }
-    }
-  };
-
-  // Called when a purchase is finished.
-  IabHelper.OnIabPurchaseFinishedListener mPurchaseFinishedListener =
-      new IabHelper.OnIabPurchaseFinishedListener() {
-    @Override
-    public void onIabPurchaseFinished(IabResult result, Purchase purchase) {
-      Log.d(LOGTAG, "Purchase finished: " + result + ", purchase: " + purchase);
-      if (result.isFailure()) {
-        Log.e(LOGTAG, "Error purchasing: " + result);
-        return;
-      }
-      if (!verifyDeveloperPayload(purchase)) {
-        Log.e(LOGTAG, "Error purchasing. Authenticity verification failed.");
-        return;
-      }
-
-      Log.d(LOGTAG, "Purchase successful.");
-
-      if (purchase.getSku().equals(SKU_TEST_SUCCESSFUL_PURCHASE)) {
-        // Bought test purchase
-        saveTestPurchase();
-        iabHelper.consumeAsync(purchase, mConsumeFinishedListener);
-        Log.d(LOGTAG, "Thank you for making the test purchase!");
       }
     }
-  };
 
-  // Called when consumption is complete
-  IabHelper.OnConsumeFinishedListener mConsumeFinishedListener =
-      new IabHelper.OnConsumeFinishedListener() {
     @Override
-    public void onConsumeFinished(Purchase purchase, IabResult result) {
-        if (result.isSuccess()) {
-            Log.d(LOGTAG, "Consumption successful. Provisioning.");
-            saveTestPurchase();
-            bannerListener.onFailedToReceiveAd();
-        }
-        else {
-          Log.e(LOGTAG, "Error while consuming: " + result);
-        }
+    public void onFailure(IabException e) {
+      Log.e(LOGTAG, "Error purchasing or consuming: " + e.getResult());
     }
   };
 
@@ -267,6 +322,21 @@ public class InAppPurchase implements CustomEventBanner {
    */
   @Override
   public void destroy() {
+    releaseIabHelper();
     iabActivity = null;
   }
+
+  /**
+   * Releases our hold on the shared billing service connection. Ads refreshed after this one have
+   * helpers of their own.
+   */
+  private void releaseIabHelper() {
+    if (iabActivity != null && iabActivity.getIabHelper() == iabHelper) {
+      iabActivity.setIabHelper(null);
+    }
+    if (iabHelper != null) {
+      iabHelper.dispose();
+    }
+    iabHelper = null;
+  }
 }
@@ -0,0 +1,143 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Orders the asynchronous operations of an {@link IabHelper}.
+ *
+ * Operations that arrive while others are running wait their turn instead of
+ * failing. Waiting operations are started by priority, and in submission order
+ * within a priority. Read-only operations (such as inventory queries) may run
+ * together; any other operation runs alone.
+ *
+ * The running state is a single atomic integer: {@link #IDLE}, the number of
+ * read-only operations running, or {@link #EXCLUSIVE}. Only one thread at a time
+ * starts operations, which keeps the priority order without taking a lock.
+ */
+class AsyncOperationQueue {
+    /** Priority of operations the user is waiting on, such as purchases and consumes. */
+    static final int PRIORITY_USER = 0;
+    /** Priority of operations nobody is actively waiting on, such as inventory refreshes. */
+    static final int PRIORITY_BACKGROUND = 1;
+
+    // Values of mState other than a count of running read-only operations.
+    static final int IDLE = 0;
+    static final int EXCLUSIVE = -1;
+
+    /**
+     * An asynchronous operation. Once started, it must call {@link #finish} exactly
+     * once when it is done, whether it succeeded or not.
+     */
+    abstract static class Operation implements Comparable<Operation> {
+        final String mName;
+        final int mPriority;
+        final boolean mReadOnly;
+        long mSequence;
+
+        Operation(String name, int priority, boolean readOnly) {
+            mName = name;
+            mPriority = priority;
+            mReadOnly = readOnly;
+        }
+
+        /**
+         * Starts the operation. Called on the thread that submitted it if it can start
+         * right away, and otherwise on the thread that finished the operation it waited
+         * for; it should hand any real work off rather than block.
+         */
+        abstract void start();
+
+        public int compareTo(Operation other) {
+            if (mPriority != other.mPriority) return mPriority < other.mPriority ? -1 : 1;
+            if (mSequence != other.mSequence) return mSequence < other.mSequence ? -1 : 1;
+            return 0;
+        }
+
+        @Override
+        public String toString() { return mName; }
+    }
+
+    private final PriorityBlockingQueue<Operation> mPending = new PriorityBlockingQueue<Operation>();
+    private final AtomicInteger mState = new AtomicInteger(IDLE);
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // Number of requests to start pending operations; whoever moves it off zero
+    // does the starting until it drops back to zero.
+    private final AtomicInteger mDrainRequests = new AtomicInteger();
+
+    /** Queues an operation, starting it right away if nothing stands in its way. */
+    void submit(Operation op) {
+        op.mSequence = mSequence.getAndIncrement();
+        mPending.add(op);
+        drain();
+    }
+
+    /** Marks a started operation as done and starts whatever may run next. */
+    void finish(Operation op) {
+        release(op);
+        drain();
+    }
+
+    /** Returns whether any operation is running or waiting. */
+    boolean isBusy() {
+        return mState.get() != IDLE || !mPending.isEmpty();
+    }
+
+    private void drain() {
+        if (mDrainRequests.getAndIncrement() != 0) return;
+        RuntimeException failure = null;
+        int requests = 1;
+        do {
+            Operation op;
+            while ((op = mPending.poll()) != null) {
+                if (!tryAcquire(op)) {
+                    // Not its turn yet; put it back (its sequence keeps its place).
+                    mPending.add(op);
+                    break;
+                }
+                try {
+                    op.start();
+                }
+                catch (RuntimeException e) {
+                    // An operation that failed to start won't finish; free its slot
+                    // and keep going, so one bad operation doesn't wedge the queue.
+                    release(op);
+                    if (failure == null) failure = e;
+                }
+            }
+            requests = mDrainRequests.addAndGet(-requests);
+        } while (requests != 0);
+        if (failure != null) throw failure;
+    }
+
+    private void release(Operation op) {
+        if (op.mReadOnly) mState.decrementAndGet();
+        else mState.set(IDLE);
+    }
+
+    private boolean tryAcquire(Operation op) {
+        if (!op.mReadOnly) return mState.compareAndSet(IDLE, EXCLUSIVE);
+        while (true) {
+            int state = mState.get();
+            if (state == EXCLUSIVE) return false;
+            if (mState.compareAndSet(state, state + 1)) return true;
+        }
+    }
+}
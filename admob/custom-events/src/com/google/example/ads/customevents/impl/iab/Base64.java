@@ -14,6 +14,14 @@
 
 package com.google.example.ads.customevents.impl.iab;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
 // This code was converted from code at http://iharder.sourceforge.net/base64/
 // Lots of extraneous features were removed.
 /* The original code said:
@@ -44,15 +52,15 @@ public class Base64 {
     public final static boolean DECODE = false;
 
     /** The equals sign (=) as a byte. */
-    private final static byte EQUALS_SIGN = (byte) '=';
+    final static byte EQUALS_SIGN = (byte) '=';
 
     /** The new line character (\n) as a byte. */
-    private final static byte NEW_LINE = (byte) '\n';
+    final static byte NEW_LINE = (byte) '\n';
 
     /**
      * The 64 valid Base64 values.
      */
-    private final static byte[] ALPHABET =
+    final static byte[] ALPHABET =
         {(byte) 'A', (byte) 'B', (byte) 'C', (byte) 'D', (byte) 'E', (byte) 'F',
         (byte) 'G', (byte) 'H', (byte) 'I', (byte) 'J', (byte) 'K',
         (byte) 'L', (byte) 'M', (byte) 'N', (byte) 'O', (byte) 'P',
@@ -70,7 +78,7 @@ public class Base64 {
     /**
      * The 64 valid web safe Base64 values.
      */
-    private final static byte[] WEBSAFE_ALPHABET =
+    final static byte[] WEBSAFE_ALPHABET =
         {(byte) 'A', (byte) 'B', (byte) 'C', (byte) 'D', (byte) 'E', (byte) 'F',
         (byte) 'G', (byte) 'H', (byte) 'I', (byte) 'J', (byte) 'K',
         (byte) 'L', (byte) 'M', (byte) 'N', (byte) 'O', (byte) 'P',
@@ -89,7 +97,7 @@ public class Base64 {
      * Translates a Base64 value to either its 6-bit reconstruction value
      * or a negative number indicating some other meaning.
      **/
-    private final static byte[] DECODABET = {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
+    final static byte[] DECODABET = {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
         -5, -5, // Whitespace: Tab and Linefeed
         -9, -9, // Decimal 11 - 12
         -5, // Whitespace: Carriage Return
@@ -123,7 +131,7 @@ public class Base64 {
     };
 
     /** The web safe decodabet */
-    private final static byte[] WEBSAFE_DECODABET =
+    final static byte[] WEBSAFE_DECODABET =
         {-9, -9, -9, -9, -9, -9, -9, -9, -9, // Decimal  0 -  8
         -5, -5, // Whitespace: Tab and Linefeed
         -9, -9, // Decimal 11 - 12
@@ -159,14 +167,34 @@ public class Base64 {
         };
 
     // Indicates white space in encoding
-    private final static byte WHITE_SPACE_ENC = -5;
+    final static byte WHITE_SPACE_ENC = -5;
     // Indicates equals sign in encoding
-    private final static byte EQUALS_SIGN_ENC = -1;
+    final static byte EQUALS_SIGN_ENC = -1;
+
+    // Arrays at least this long are encoded or decoded in parallel on the shared
+    // verification pool, in chunks of at least half this size; below that the
+    // handoff costs more than it saves.
+    static final int PARALLEL_THRESHOLD = 1024 * 1024;
 
     /** Defeats instantiation. */
     private Base64() {
     }
 
+    // Returns the number of chunks to split an input of the given length into.
+    private static int parallelChunks(int len) {
+        if (len < PARALLEL_THRESHOLD) return 1;
+        return Math.min(IabExecutors.CPU_COUNT, len / (PARALLEL_THRESHOLD / 2));
+    }
+
+    // Runs tasks that throw no checked exceptions on the verification pool.
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        try {
+            return IabExecutors.invokeAll(IabExecutors.verificationPool(), tasks);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(IabExecutors.rethrowUnchecked(e));
+        }
+    }
+
     /* ********  E N C O D I N G   M E T H O D S  ******** */
 
     /**
@@ -191,7 +219,7 @@ public class Base64 {
      * @return the <var>destination</var> array
      * @since 1.3
      */
-    private static byte[] encode3to4(byte[] source, int srcOffset,
+    static byte[] encode3to4(byte[] source, int srcOffset,
             int numSigBytes, byte[] destination, int destOffset, byte[] alphabet) {
         //           1         2         3
         // 01234567890123456789012345678901 Bit position
@@ -296,51 +324,180 @@ public class Base64 {
      */
     public static byte[] encode(byte[] source, int off, int len, byte[] alphabet,
             int maxLineLength) {
-        int lenDiv3 = (len + 2) / 3; // ceil(len / 3)
-        int len43 = lenDiv3 * 4;
-        byte[] outBuff = new byte[len43 // Main 4:3
-                                  + (len43 / maxLineLength)]; // New lines
+        byte[] outBuff = new byte[encodedLength(len, maxLineLength)];
+        int e = encode(source, off, len, outBuff, 0, null, alphabet, maxLineLength);
+        assert (e == outBuff.length);
+        return outBuff;
+    }
+
+    /**
+     * Returns the number of bytes {@link #encode(byte[], int, int, byte[], int, byte[], int)}
+     * writes for <var>len</var> bytes of data: four for every three bytes or part
+     * thereof, plus the new lines.
+     *
+     * @param len length of data to convert
+     * @param maxLineLength maximum length of one line.
+     */
+    public static int encodedLength(int len, int maxLineLength) {
+        int len43 = ((len + 2) / 3) * 4; // 4 * ceil(len / 3)
+        return len43 + (len43 / maxLineLength);
+    }
+
+    /**
+     * Encodes a byte array into Base64 notation, writing the result into a
+     * caller-supplied array rather than allocating one.
+     *
+     * @param source the data to convert
+     * @param off offset in array where conversion should begin
+     * @param len length of data to convert
+     * @param dest the array to write the encoded data to; it must have room for
+     *     {@link #encodedLength} bytes from <var>destOff</var>
+     * @param destOff offset in <var>dest</var> where output should begin
+     * @param alphabet is the encoding alphabet
+     * @param maxLineLength maximum length of one line.
+     * @return the number of bytes written
+     */
+    public static int encode(byte[] source, int off, int len, byte[] dest, int destOff,
+            byte[] alphabet, int maxLineLength) {
+        return encode(source, off, len, dest, destOff, null, alphabet, maxLineLength) - destOff;
+    }
+
+    /**
+     * Encodes a byte array into Base64 notation, writing the result into a buffer
+     * at its position, which is advanced past the encoded data.
+     *
+     * @param source the data to convert
+     * @param off offset in array where conversion should begin
+     * @param len length of data to convert
+     * @param dest the buffer to write the encoded data to
+     * @param alphabet is the encoding alphabet
+     * @param maxLineLength maximum length of one line.
+     * @return the number of bytes written
+     * @throws BufferOverflowException if <var>dest</var> has less than
+     *     {@link #encodedLength} bytes remaining; nothing is written in that case
+     */
+    public static int encode(byte[] source, int off, int len, ByteBuffer dest,
+            byte[] alphabet, int maxLineLength) {
+        int outLen = encodedLength(len, maxLineLength);
+        if (outLen > dest.remaining()) throw new BufferOverflowException();
+        if (dest.hasArray()) {
+            encode(source, off, len, dest.array(), dest.arrayOffset() + dest.position(), null,
+                    alphabet, maxLineLength);
+            dest.position(dest.position() + outLen);
+        } else {
+            encode(source, off, len, null, 0, dest, alphabet, maxLineLength);
+        }
+        return outLen;
+    }
+
+    // Encodes into dest from destOff if dest isn't null, and else into destBuffer.
+    // Returns the offset in dest just past the output.
+    private static int encode(byte[] source, int off, int len, byte[] dest, int destOff,
+            ByteBuffer destBuffer, byte[] alphabet, int maxLineLength) {
+        int chunks = dest != null ? parallelChunks(len) : 1;
+        if (chunks > 1) {
+            return encodeParallel(source, off, len, dest, destOff, alphabet, maxLineLength, chunks);
+        }
+        return encodeSerial(source, off, len, dest, destOff, destBuffer, alphabet, maxLineLength);
+    }
+
+    /**
+     * Encodes in parallel on the shared verification pool. The input is split into
+     * chunks of whole groups of three bytes, and of whole lines if there are line
+     * breaks, so that each chunk encodes on its own straight into its place in dest.
+     */
+    private static int encodeParallel(final byte[] source, final int off, final int len,
+            final byte[] dest, final int destOff, final byte[] alphabet,
+            final int maxLineLength, int chunks) {
+        // Base64.encode() only breaks lines whose length is a multiple of four.
+        final boolean lineBreaks = maxLineLength % 4 == 0;
+        int unit = lineBreaks ? maxLineLength / 4 * 3 : 3;
+        int chunkLen = ((len / chunks) + unit - 1) / unit * unit;
+        if (chunkLen <= 0 || chunkLen >= len) {
+            return encodeSerial(source, off, len, dest, destOff, null, alphabet, maxLineLength);
+        }
+
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(chunks);
+        for (int from = 0; from < len; from += chunkLen) {
+            final int chunkOff = from;
+            final int n = Math.min(chunkLen, len - from);
+            tasks.add(new Callable<Integer>() {
+                public Integer call() {
+                    int groups = chunkOff / 3;
+                    int e = destOff + groups * 4 + (lineBreaks ? groups * 4 / maxLineLength : 0);
+                    return encodeSerial(source, off + chunkOff, n, dest, e, null,
+                            alphabet, maxLineLength);
+                }
+            });
+        }
+        List<Integer> ends = invokeAll(tasks);
+        return ends.get(ends.size() - 1);
+    }
 
+    // Encodes on the calling thread; see encode() above.
+    private static int encodeSerial(byte[] source, int off, int len, byte[] dest, int destOff,
+            ByteBuffer destBuffer, byte[] alphabet, int maxLineLength) {
         int d = 0;
-        int e = 0;
+        int e = destOff;
         int len2 = len - 2;
         int lineLength = 0;
-        for (; d < len2; d += 3, e += 4) {
+        for (; d < len2; d += 3) {
 
             // The following block of code is the same as
-            // encode3to4( source, d + off, 3, outBuff, e, alphabet );
+            // encode3to4( source, d + off, 3, dest, e, alphabet );
             // but inlined for faster encoding (~20% improvement)
             int inBuff =
                     ((source[d + off] << 24) >>> 8)
                     | ((source[d + 1 + off] << 24) >>> 16)
                     | ((source[d + 2 + off] << 24) >>> 24);
-            outBuff[e] = alphabet[(inBuff >>> 18)];
-            outBuff[e + 1] = alphabet[(inBuff >>> 12) & 0x3f];
-            outBuff[e + 2] = alphabet[(inBuff >>> 6) & 0x3f];
-            outBuff[e + 3] = alphabet[(inBuff) & 0x3f];
+            if (dest != null) {
+                dest[e] = alphabet[(inBuff >>> 18)];
+                dest[e + 1] = alphabet[(inBuff >>> 12) & 0x3f];
+                dest[e + 2] = alphabet[(inBuff >>> 6) & 0x3f];
+                dest[e + 3] = alphabet[(inBuff) & 0x3f];
+            } else {
+                destBuffer.put(alphabet[(inBuff >>> 18)])
+                        .put(alphabet[(inBuff >>> 12) & 0x3f])
+                        .put(alphabet[(inBuff >>> 6) & 0x3f])
+                        .put(alphabet[(inBuff) & 0x3f]);
+            }
+            e += 4;
 
             lineLength += 4;
             if (lineLength == maxLineLength) {
-                outBuff[e + 4] = NEW_LINE;
-                e++;
+                e = put(dest, e, destBuffer, NEW_LINE);
                 lineLength = 0;
             } // end if: end of line
         } // end for: each piece of array
 
         if (d < len) {
-            encode3to4(source, d + off, len - d, outBuff, e, alphabet);
+            int rest = len - d;
+            int inBuff =
+                    ((source[d + off] << 24) >>> 8)
+                    | (rest > 1 ? ((source[d + 1 + off] << 24) >>> 16) : 0);
+            e = put(dest, e, destBuffer, alphabet[(inBuff >>> 18)]);
+            e = put(dest, e, destBuffer, alphabet[(inBuff >>> 12) & 0x3f]);
+            e = put(dest, e, destBuffer, rest > 1 ? alphabet[(inBuff >>> 6) & 0x3f] : EQUALS_SIGN);
+            e = put(dest, e, destBuffer, EQUALS_SIGN);
 
             lineLength += 4;
             if (lineLength == maxLineLength) {
                 // Add a last newline
-                outBuff[e + 4] = NEW_LINE;
-                e++;
+                e = put(dest, e, destBuffer, NEW_LINE);
             }
-            e += 4;
         }
+        return e;
+    }
 
-        assert (e == outBuff.length);
-        return outBuff;
+    // Writes b at dest[posn] if dest isn't null, and else to destBuffer.
+    // Returns the next position in dest.
+    private static int put(byte[] dest, int posn, ByteBuffer destBuffer, byte b) {
+        if (dest != null) {
+            dest[posn] = b;
+        } else {
+            destBuffer.put(b);
+        }
+        return posn + 1;
     }
 
 
@@ -370,7 +527,7 @@ public class Base64 {
      * @return the number of decoded bytes converted
      * @since 1.3
      */
-    private static int decode4to3(byte[] source, int srcOffset,
+    static int decode4to3(byte[] source, int srcOffset,
             byte[] destination, int destOffset, byte[] decodabet) {
         // Example: Dk==
         if (source[srcOffset + 2] == EQUALS_SIGN) {
@@ -409,25 +566,119 @@ public class Base64 {
     /**
      * Decodes data from Base64 notation.
      *
-     * @param s the string to decode (decoded in default encoding)
+     * @param s the string to decode; it must only hold ASCII characters
      * @return the decoded data
      * @since 1.4
      */
     public static byte[] decode(String s) throws Base64DecoderException {
-        byte[] bytes = s.getBytes();
-        return decode(bytes, 0, bytes.length);
+        return decode((CharSequence) s);
     }
 
     /**
      * Decodes data from web safe Base64 notation.
      * Web safe encoding uses '-' instead of '+', '_' instead of '/'
      *
-     * @param s the string to decode (decoded in default encoding)
+     * @param s the string to decode; it must only hold ASCII characters
      * @return the decoded data
      */
     public static byte[] decodeWebSafe(String s) throws Base64DecoderException {
-        byte[] bytes = s.getBytes();
-        return decodeWebSafe(bytes, 0, bytes.length);
+        return decodeWebSafe((CharSequence) s);
+    }
+
+    /**
+     * Decodes data from Base64 notation, reading the characters directly rather
+     * than through a byte array copy. Characters outside of ASCII are rejected.
+     *
+     * @param source the characters to decode
+     * @return the decoded data
+     */
+    public static byte[] decode(CharSequence source) throws Base64DecoderException {
+        return decode(source, 0, source.length(), DECODABET);
+    }
+
+    /**
+     * Decodes data from web safe Base64 notation, reading the characters directly.
+     * Web safe encoding uses '-' instead of '+', '_' instead of '/'
+     *
+     * @see #decode(CharSequence)
+     */
+    public static byte[] decodeWebSafe(CharSequence source) throws Base64DecoderException {
+        return decode(source, 0, source.length(), WEBSAFE_DECODABET);
+    }
+
+    /**
+     * Decodes data from Base64 notation in a char array.
+     *
+     * @see #decode(CharSequence)
+     */
+    public static byte[] decode(char[] source, int off, int len) throws Base64DecoderException {
+        return decode(CharBuffer.wrap(source), off, len, DECODABET);
+    }
+
+    /**
+     * Decodes data from web safe Base64 notation in a char array.
+     *
+     * @see #decode(CharSequence)
+     */
+    public static byte[] decodeWebSafe(char[] source, int off, int len)
+            throws Base64DecoderException {
+        return decode(CharBuffer.wrap(source), off, len, WEBSAFE_DECODABET);
+    }
+
+    /**
+     * Decodes Base64 characters into a caller-supplied array.
+     *
+     * @param source the characters to decode; only ASCII characters are accepted
+     * @param off the offset of where to begin decoding
+     * @param len the number of characters to decode
+     * @param dest the array to write the decoded data to; it must have room for
+     *     {@link #decodedLength(CharSequence, int, int)} bytes from <var>destOff</var>
+     * @param destOff offset in <var>dest</var> where output should begin
+     * @return the number of bytes written
+     */
+    public static int decode(CharSequence source, int off, int len, byte[] dest, int destOff)
+            throws Base64DecoderException {
+        return decode(source, off, len, dest, destOff, DECODABET) - destOff;
+    }
+
+    /**
+     * Decodes web safe Base64 characters into a caller-supplied array.
+     * Web safe encoding uses '-' instead of '+', '_' instead of '/'
+     *
+     * @see #decode(CharSequence, int, int, byte[], int)
+     */
+    public static int decodeWebSafe(CharSequence source, int off, int len, byte[] dest,
+            int destOff) throws Base64DecoderException {
+        return decode(source, off, len, dest, destOff, WEBSAFE_DECODABET) - destOff;
+    }
+
+    /**
+     * Decodes Base64 characters in a char array into a caller-supplied array.
+     *
+     * @see #decode(CharSequence, int, int, byte[], int)
+     */
+    public static int decode(char[] source, int off, int len, byte[] dest, int destOff)
+            throws Base64DecoderException {
+        return decode(CharBuffer.wrap(source), off, len, dest, destOff, DECODABET) - destOff;
+    }
+
+    /**
+     * Returns the number of bytes the given Base64 characters, standard or web safe,
+     * decode to, without decoding them.
+     *
+     * @see #decodedLength(byte[], int, int)
+     */
+    public static int decodedLength(CharSequence source, int off, int len) {
+        // White space and padding are the same in both alphabets; anything else
+        // before the padding is either significant or makes decoding fail.
+        int chars = 0;
+        for (int i = off, end = off + len; i < end; i++) {
+            char c = source.charAt(i);
+            byte sbiDecode = c > 0x7f ? 0 : DECODABET[c];
+            if (sbiDecode == EQUALS_SIGN_ENC) break;
+            if (sbiDecode != WHITE_SPACE_ENC) chars++;
+        }
+        return chars / 4 * 3 + Math.max(0, chars % 4 - 1);
     }
 
     /**
@@ -499,70 +750,496 @@ public class Base64 {
      */
     public static byte[] decode(byte[] source, int off, int len, byte[] decodabet)
             throws Base64DecoderException {
-        int len34 = len * 3 / 4;
-        byte[] outBuff = new byte[2 + len34]; // Upper limit on size of output
-        int outBuffPosn = 0;
-
-        byte[] b4 = new byte[4];
-        int b4Posn = 0;
-        int i = 0;
-        byte sbiCrop = 0;
-        byte sbiDecode = 0;
-        for (i = 0; i < len; i++) {
-            sbiCrop = (byte) (source[i + off] & 0x7f); // Only the low seven bits
-            sbiDecode = decodabet[sbiCrop];
-
-            if (sbiDecode >= WHITE_SPACE_ENC) { // White space Equals sign or better
-                if (sbiDecode >= EQUALS_SIGN_ENC) {
-                    // An equals sign (for padding) must not occur at position 0 or 1
-                    // and must be the last byte[s] in the encoded value
-                    if (sbiCrop == EQUALS_SIGN) {
-                        int bytesLeft = len - i;
-                        byte lastByte = (byte) (source[len - 1 + off] & 0x7f);
-                        if (b4Posn == 0 || b4Posn == 1) {
-                            throw new Base64DecoderException(
-                                    "invalid padding byte '=' at byte offset " + i);
-                        } else if ((b4Posn == 3 && bytesLeft > 2)
-                                || (b4Posn == 4 && bytesLeft > 1)) {
-                            throw new Base64DecoderException(
-                                    "padding byte '=' falsely signals end of encoded value "
-                                            + "at offset " + i);
-                        } else if (lastByte != EQUALS_SIGN && lastByte != NEW_LINE) {
-                            throw new Base64DecoderException(
-                                    "encoded value has invalid trailing byte");
+        byte[] out = new byte[decodedLength(source, off, len, decodabet)];
+        decode(source, off, len, out, 0, null, decodabet);
+        return out;
+    }
+
+    /**
+     * Decodes Base64 content into a caller-supplied array.
+     *
+     * @param source the Base64 encoded data
+     * @param off the offset of where to begin decoding
+     * @param len the length of characters to decode
+     * @param dest the array to write the decoded data to; it must have room for
+     *     {@link #decodedLength(byte[], int, int)} bytes from <var>destOff</var>.
+     *     It may be <var>source</var> itself, with <var>destOff</var> no greater
+     *     than <var>off</var>: the data is then decoded in place.
+     * @param destOff offset in <var>dest</var> where output should begin
+     * @return the number of bytes written
+     */
+    public static int decode(byte[] source, int off, int len, byte[] dest, int destOff)
+            throws Base64DecoderException {
+        return decode(source, off, len, dest, destOff, DECODABET);
+    }
+
+    /**
+     * Decodes web safe Base64 content into a caller-supplied array.
+     * Web safe encoding uses '-' instead of '+', '_' instead of '/'
+     *
+     * @see #decode(byte[], int, int, byte[], int)
+     */
+    public static int decodeWebSafe(byte[] source, int off, int len, byte[] dest, int destOff)
+            throws Base64DecoderException {
+        return decode(source, off, len, dest, destOff, WEBSAFE_DECODABET);
+    }
+
+    /**
+     * Decodes Base64 content using the supplied decodabet into a caller-supplied
+     * array.
+     *
+     * @see #decode(byte[], int, int, byte[], int)
+     */
+    public static int decode(byte[] source, int off, int len, byte[] dest, int destOff,
+            byte[] decodabet) throws Base64DecoderException {
+        return decode(source, off, len, dest, destOff, null, decodabet) - destOff;
+    }
+
+    /**
+     * Decodes Base64 content using the supplied decodabet into a buffer at its
+     * position, which is advanced past the decoded data.
+     *
+     * @param source the Base64 encoded data
+     * @param off the offset of where to begin decoding
+     * @param len the length of characters to decode
+     * @param dest the buffer to write the decoded data to
+     * @param decodabet the decodabet for decoding Base64 content
+     * @return the number of bytes written
+     * @throws BufferOverflowException if <var>dest</var> has less room than the
+     *     decoded data needs; nothing is written in that case
+     */
+    public static int decode(byte[] source, int off, int len, ByteBuffer dest,
+            byte[] decodabet) throws Base64DecoderException {
+        if (decodedLength(source, off, len, decodabet) > dest.remaining()) {
+            throw new BufferOverflowException();
+        }
+        int n;
+        if (dest.hasArray()) {
+            int destOff = dest.arrayOffset() + dest.position();
+            n = decode(source, off, len, dest.array(), destOff, null, decodabet) - destOff;
+            dest.position(dest.position() + n);
+        } else {
+            n = decode(source, off, len, null, 0, dest, decodabet);
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of bytes the given Base64 content decodes to, without
+     * decoding it. Content that isn't valid Base64 gets an estimate; decoding it
+     * fails.
+     *
+     * @param source the Base64 encoded data
+     * @param off the offset of where to begin decoding
+     * @param len the length of characters to decode
+     */
+    public static int decodedLength(byte[] source, int off, int len) {
+        return decodedLength(source, off, len, DECODABET);
+    }
+
+    /**
+     * Returns the number of bytes the given Base64 content decodes to with the
+     * supplied decodabet.
+     *
+     * @see #decodedLength(byte[], int, int)
+     */
+    public static int decodedLength(byte[] source, int off, int len, byte[] decodabet) {
+        int chunks = parallelChunks(len);
+        if (chunks > 1) {
+            int[] bounds = new int[chunks + 1];
+            for (int c = 0; c <= chunks; c++) {
+                bounds[c] = off + (int) ((long) len * c / chunks);
+            }
+            int[] counts = new int[chunks];
+            if (countSignificant(source, bounds, counts, decodabet)) {
+                int chars = 0;
+                for (int count : counts) chars += count;
+                return chars / 4 * 3 + Math.max(0, chars % 4 - 1);
+            }
+        }
+
+        // Count the significant characters: everything up to the padding, if any,
+        // except white space.
+        int chars = 0;
+        for (int i = off, end = off + len; i < end; i++) {
+            byte sbiDecode = decodabet[source[i] & 0x7f];
+            if (sbiDecode >= 0) {
+                chars++;
+            } else if (sbiDecode == EQUALS_SIGN_ENC) {
+                break;
+            }
+        }
+        // Every four characters make three bytes; a final two or three make one or two.
+        return chars / 4 * 3 + Math.max(0, chars % 4 - 1);
+    }
+
+    // Decodes into dest from destOff if dest isn't null, and else into destBuffer.
+    // Returns the offset in dest just past the output.
+    private static int decode(byte[] source, int off, int len, byte[] dest, int destOff,
+            ByteBuffer destBuffer, byte[] decodabet) throws Base64DecoderException {
+        int chunks = dest != null ? parallelChunks(len) : 1;
+        if (chunks > 1) {
+            return decodeParallel(source, off, len, dest, destOff, decodabet, chunks);
+        }
+        return decodeSerial(source, off, len, dest, destOff, destBuffer, decodabet);
+    }
+
+    /**
+     * Decodes in parallel on the shared verification pool.
+     *
+     * <p>Where a chunk's output goes depends on the number of significant characters
+     * before it, so those are counted first, in parallel. The chunk bounds are then
+     * moved forward to whole quanta, after which each chunk decodes on its own
+     * straight into its place in dest. Content with invalid characters, or padding
+     * anywhere but in the last chunk, is left to the serial decoder, which also
+     * rethrows any error with the offsets of the whole input.
+     */
+    private static int decodeParallel(final byte[] source, int off, int len,
+            final byte[] dest, int destOff, final byte[] decodabet, int chunks)
+            throws Base64DecoderException {
+        final int[] bounds = new int[chunks + 1];
+        for (int c = 0; c <= chunks; c++) {
+            bounds[c] = off + (int) ((long) len * c / chunks);
+        }
+        int[] counts = new int[chunks];
+        if (!countSignificant(source, bounds, counts, decodabet)) {
+            return decodeSerial(source, off, len, dest, destOff, null, decodabet);
+        }
+
+        final int[] starts = new int[chunks];
+        starts[0] = destOff;
+        int total = 0; // significant characters before the original bounds[c]
+        for (int c = 1; c < chunks; c++) {
+            total += counts[c - 1];
+            int i = bounds[c];
+            int chars = total;
+            while (chars % 4 != 0) {
+                if (i == bounds[c + 1]) {
+                    return decodeSerial(source, off, len, dest, destOff, null, decodabet);
+                }
+                byte sbiDecode = decodabet[source[i++] & 0x7f];
+                if (sbiDecode >= 0) {
+                    chars++;
+                } else if (sbiDecode == EQUALS_SIGN_ENC) {
+                    return decodeSerial(source, off, len, dest, destOff, null, decodabet);
+                }
+            }
+            bounds[c] = i;
+            starts[c] = destOff + chars / 4 * 3;
+        }
+
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int from = bounds[c];
+            final int to = bounds[c + 1];
+            final int start = starts[c];
+            tasks.add(new Callable<Integer>() {
+                public Integer call() throws Base64DecoderException {
+                    return decodeSerial(source, from, to - from, dest, start, null, decodabet);
+                }
+            });
+        }
+        try {
+            List<Integer> ends = IabExecutors.invokeAll(IabExecutors.verificationPool(), tasks);
+            return ends.get(ends.size() - 1);
+        }
+        catch (ExecutionException e) {
+            if (IabExecutors.rethrowUnchecked(e) instanceof Base64DecoderException) {
+                return decodeSerial(source, off, len, dest, destOff, null, decodabet);
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Counts, in parallel, the significant characters of each chunk of source
+     * between the given bounds, up to the padding if any.
+     *
+     * @return false if a chunk has an invalid character, or a chunk other than the
+     *     last one has padding.
+     */
+    private static boolean countSignificant(final byte[] source, final int[] bounds,
+            final int[] counts, final byte[] decodabet) {
+        final int chunks = counts.length;
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int chunk = c;
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() {
+                    int chars = 0;
+                    for (int i = bounds[chunk]; i < bounds[chunk + 1]; i++) {
+                        byte sbiDecode = decodabet[source[i] & 0x7f];
+                        if (sbiDecode >= 0) {
+                            chars++;
+                        } else if (sbiDecode == EQUALS_SIGN_ENC) {
+                            counts[chunk] = chars;
+                            return chunk == chunks - 1;
+                        } else if (sbiDecode != WHITE_SPACE_ENC) {
+                            return false;
                         }
-                        break;
                     }
+                    counts[chunk] = chars;
+                    return true;
+                }
+            });
+        }
+        for (Boolean ok : invokeAll(tasks)) {
+            if (!ok) return false;
+        }
+        return true;
+    }
+
+    // Decodes on the calling thread; see decode() above.
+    private static int decodeSerial(byte[] source, int off, int len, byte[] dest, int destOff,
+            ByteBuffer destBuffer, byte[] decodabet) throws Base64DecoderException {
+        int outBuffPosn = destOff;
 
-                    b4[b4Posn++] = sbiCrop;
-                    if (b4Posn == 4) {
-                        outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
-                        b4Posn = 0;
+        // The 6-bit values of the quantum being decoded, and how many there are
+        int quantum = 0;
+        int quantumPosn = 0;
+        for (int i = 0; i < len; i++) {
+            // Fast path for well-formed input, see decodeBlocks().
+            if (quantumPosn == 0 && len - i >= 8) {
+                int n = decodeBlocks(source, i + off, len - i, dest, outBuffPosn, destBuffer,
+                        decodabet);
+                i += n;
+                outBuffPosn += n / 4 * 3;
+            }
+            if (i == len) break;
+
+            byte sbiCrop = (byte) (source[i + off] & 0x7f); // Only the low seven bits
+            byte sbiDecode = decodabet[sbiCrop];
+
+            if (sbiDecode >= 0) {
+                quantum = (quantum << 6) | sbiDecode;
+                if (++quantumPosn == 4) {
+                    if (dest != null) {
+                        dest[outBuffPosn] = (byte) (quantum >> 16);
+                        dest[outBuffPosn + 1] = (byte) (quantum >> 8);
+                        dest[outBuffPosn + 2] = (byte) quantum;
+                    } else {
+                        destBuffer.put((byte) (quantum >> 16))
+                                .put((byte) (quantum >> 8))
+                                .put((byte) quantum);
                     }
+                    outBuffPosn += 3;
+                    quantum = 0;
+                    quantumPosn = 0;
                 }
-            } else {
+            } else if (sbiDecode == EQUALS_SIGN_ENC) {
+                // An equals sign (for padding) must not occur at position 0 or 1
+                // and must be the last byte[s] in the encoded value
+                int bytesLeft = len - i;
+                byte lastByte = (byte) (source[len - 1 + off] & 0x7f);
+                if (quantumPosn == 0 || quantumPosn == 1) {
+                    throw new Base64DecoderException(
+                            "invalid padding byte '=' at byte offset " + i);
+                } else if (quantumPosn == 3 && bytesLeft > 2) {
+                    throw new Base64DecoderException(
+                            "padding byte '=' falsely signals end of encoded value "
+                                    + "at offset " + i);
+                } else if (lastByte != EQUALS_SIGN && lastByte != NEW_LINE) {
+                    throw new Base64DecoderException(
+                            "encoded value has invalid trailing byte");
+                }
+                break;
+            } else if (sbiDecode != WHITE_SPACE_ENC) {
                 throw new Base64DecoderException("Bad Base64 input character at " + i
                         + ": " + source[i + off] + "(decimal)");
             }
         }
 
-        // Because web safe encoding allows non padding base64 encodes, we
-        // need to pad the rest of the b4 buffer with equal signs when
-        // b4Posn != 0.  There can be at most 2 equal signs at the end of
-        // four characters, so the b4 buffer must have two or three
-        // characters.  This also catches the case where the input is
-        // padded with EQUALS_SIGN
-        if (b4Posn != 0) {
-            if (b4Posn == 1) {
+        // Because web safe encoding allows non padding base64 encodes, a
+        // partial quantum is decoded as if it were padded with equal signs.
+        // There can be at most 2 equal signs at the end of four characters,
+        // so the quantum must have two or three characters.  This also
+        // catches the case where the input is padded with EQUALS_SIGN
+        if (quantumPosn != 0) {
+            if (quantumPosn == 1) {
                 throw new Base64DecoderException("single trailing character at offset "
                         + (len - 1));
             }
-            b4[b4Posn++] = EQUALS_SIGN;
-            outBuffPosn += decode4to3(b4, 0, outBuff, outBuffPosn, decodabet);
+            if (quantumPosn == 2) {
+                // 12 bits, the last 4 of which are padding
+                outBuffPosn = put(dest, outBuffPosn, destBuffer, (byte) (quantum >> 4));
+            } else {
+                // 18 bits, the last 2 of which are padding
+                outBuffPosn = put(dest, outBuffPosn, destBuffer, (byte) (quantum >> 10));
+                outBuffPosn = put(dest, outBuffPosn, destBuffer, (byte) (quantum >> 2));
+            }
         }
+        return outBuffPosn;
+    }
 
-        byte[] out = new byte[outBuffPosn];
-        System.arraycopy(outBuff, 0, out, 0, outBuffPosn);
+    /**
+     * Decodes blocks of eight characters into six bytes for as long as none of the
+     * characters in a block is white space, padding or invalid (all of which the
+     * decodabet maps to negative values), so that one check covers the whole block.
+     * Stops at the first block that fails the check, leaving it to the strict
+     * character at a time decoder.
+     *
+     * @return the number of characters decoded, a multiple of eight
+     */
+    static int decodeBlocks(byte[] source, int off, int len, byte[] dest, int destOff,
+            ByteBuffer destBuffer, byte[] decodabet) {
+        int i = off;
+        int end = off + len - 8;
+        int d = destOff;
+        while (i <= end) {
+            int v0 = decodabet[source[i] & 0x7f];
+            int v1 = decodabet[source[i + 1] & 0x7f];
+            int v2 = decodabet[source[i + 2] & 0x7f];
+            int v3 = decodabet[source[i + 3] & 0x7f];
+            int v4 = decodabet[source[i + 4] & 0x7f];
+            int v5 = decodabet[source[i + 5] & 0x7f];
+            int v6 = decodabet[source[i + 6] & 0x7f];
+            int v7 = decodabet[source[i + 7] & 0x7f];
+            if ((v0 | v1 | v2 | v3 | v4 | v5 | v6 | v7) < 0) break;
+
+            long bits = ((long) v0 << 42) | ((long) v1 << 36) | ((long) v2 << 30)
+                    | ((long) v3 << 24) | (v4 << 18) | (v5 << 12) | (v6 << 6) | v7;
+            if (dest != null) {
+                dest[d] = (byte) (bits >> 40);
+                dest[d + 1] = (byte) (bits >> 32);
+                dest[d + 2] = (byte) (bits >> 24);
+                dest[d + 3] = (byte) (bits >> 16);
+                dest[d + 4] = (byte) (bits >> 8);
+                dest[d + 5] = (byte) bits;
+            } else {
+                destBuffer.put((byte) (bits >> 40))
+                        .put((byte) (bits >> 32))
+                        .put((byte) (bits >> 24))
+                        .put((byte) (bits >> 16))
+                        .put((byte) (bits >> 8))
+                        .put((byte) bits);
+            }
+            d += 6;
+            i += 8;
+        }
+        return i - off;
+    }
+
+    // Decodes characters into a new array of exactly the decoded length.
+    private static byte[] decode(CharSequence source, int off, int len, byte[] decodabet)
+            throws Base64DecoderException {
+        byte[] out = new byte[decodedLength(source, off, len)];
+        decode(source, off, len, out, 0, decodabet);
         return out;
     }
+
+    // Decodes characters into dest from destOff, like the byte array decoder but
+    // rejecting characters outside of ASCII instead of cropping them to seven bits.
+    // Returns the offset in dest just past the output.
+    private static int decode(CharSequence source, int off, int len, byte[] dest, int destOff,
+            byte[] decodabet) throws Base64DecoderException {
+        int outBuffPosn = destOff;
+
+        // The 6-bit values of the quantum being decoded, and how many there are
+        int quantum = 0;
+        int quantumPosn = 0;
+        for (int i = 0; i < len; i++) {
+            // Fast path for well-formed input, see decodeBlocks().
+            if (quantumPosn == 0 && len - i >= 8) {
+                int n = decodeBlocks(source, i + off, len - i, dest, outBuffPosn, decodabet);
+                i += n;
+                outBuffPosn += n / 4 * 3;
+            }
+            if (i == len) break;
+
+            char c = source.charAt(i + off);
+            if (c > 0x7f) {
+                throw new Base64DecoderException("Non-ASCII character at " + i
+                        + ": " + (int) c + "(decimal)");
+            }
+            byte sbiDecode = decodabet[c];
+
+            if (sbiDecode >= 0) {
+                quantum = (quantum << 6) | sbiDecode;
+                if (++quantumPosn == 4) {
+                    dest[outBuffPosn] = (byte) (quantum >> 16);
+                    dest[outBuffPosn + 1] = (byte) (quantum >> 8);
+                    dest[outBuffPosn + 2] = (byte) quantum;
+                    outBuffPosn += 3;
+                    quantum = 0;
+                    quantumPosn = 0;
+                }
+            } else if (sbiDecode == EQUALS_SIGN_ENC) {
+                // An equals sign (for padding) must not occur at position 0 or 1
+                // and must be the last char[s] in the encoded value
+                int charsLeft = len - i;
+                char lastChar = source.charAt(len - 1 + off);
+                if (quantumPosn == 0 || quantumPosn == 1) {
+                    throw new Base64DecoderException(
+                            "invalid padding byte '=' at byte offset " + i);
+                } else if (quantumPosn == 3 && charsLeft > 2) {
+                    throw new Base64DecoderException(
+                            "padding byte '=' falsely signals end of encoded value "
+                                    + "at offset " + i);
+                } else if (lastChar != EQUALS_SIGN && lastChar != NEW_LINE) {
+                    throw new Base64DecoderException(
+                            "encoded value has invalid trailing byte");
+                }
+                break;
+            } else if (sbiDecode != WHITE_SPACE_ENC) {
+                throw new Base64DecoderException("Bad Base64 input character at " + i
+                        + ": " + (int) c + "(decimal)");
+            }
+        }
+
+        if (quantumPosn != 0) {
+            if (quantumPosn == 1) {
+                throw new Base64DecoderException("single trailing character at offset "
+                        + (len - 1));
+            }
+            if (quantumPosn == 2) {
+                dest[outBuffPosn++] = (byte) (quantum >> 4);
+            } else {
+                dest[outBuffPosn++] = (byte) (quantum >> 10);
+                dest[outBuffPosn++] = (byte) (quantum >> 2);
+            }
+        }
+        return outBuffPosn;
+    }
+
+    // Like decodeBlocks() for bytes, but also leaves blocks with characters outside
+    // of ASCII to the character at a time decoder, which rejects them.
+    private static int decodeBlocks(CharSequence source, int off, int len, byte[] dest,
+            int destOff, byte[] decodabet) {
+        int i = off;
+        int end = off + len - 8;
+        int d = destOff;
+        while (i <= end) {
+            char c0 = source.charAt(i);
+            char c1 = source.charAt(i + 1);
+            char c2 = source.charAt(i + 2);
+            char c3 = source.charAt(i + 3);
+            char c4 = source.charAt(i + 4);
+            char c5 = source.charAt(i + 5);
+            char c6 = source.charAt(i + 6);
+            char c7 = source.charAt(i + 7);
+            if ((c0 | c1 | c2 | c3 | c4 | c5 | c6 | c7) > 0x7f) break;
+
+            int v0 = decodabet[c0];
+            int v1 = decodabet[c1];
+            int v2 = decodabet[c2];
+            int v3 = decodabet[c3];
+            int v4 = decodabet[c4];
+            int v5 = decodabet[c5];
+            int v6 = decodabet[c6];
+            int v7 = decodabet[c7];
+            if ((v0 | v1 | v2 | v3 | v4 | v5 | v6 | v7) < 0) break;
+
+            long bits = ((long) v0 << 42) | ((long) v1 << 36) | ((long) v2 << 30)
+                    | ((long) v3 << 24) | (v4 << 18) | (v5 << 12) | (v6 << 6) | v7;
+            dest[d] = (byte) (bits >> 40);
+            dest[d + 1] = (byte) (bits >> 32);
+            dest[d + 2] = (byte) (bits >> 24);
+            dest[d + 3] = (byte) (bits >> 16);
+            dest[d + 4] = (byte) (bits >> 8);
+            dest[d + 5] = (byte) bits;
+            d += 6;
+            i += 8;
+        }
+        return i - off;
+    }
 }
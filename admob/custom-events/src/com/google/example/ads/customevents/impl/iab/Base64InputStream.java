@@ -0,0 +1,229 @@
+// Copyright 2002, Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * An input stream that reads Base64 content from the underlying stream and
+ * returns the decoded data.
+ *
+ * <p>The content is read and decoded through fixed size buffers, so any amount of
+ * data can be decoded in constant memory. The characters of a group that is split
+ * between two reads are carried over from one to the next. White space is skipped
+ * and a final group may be left unpadded, as with {@link Base64#decode}; malformed
+ * content makes reads throw an {@link IOException}.
+ *
+ * <p>The stream is stricter than {@link Base64#decode} about what follows padding:
+ * padding ends the encoded value, and anything but more padding or white space
+ * after it is an error. The array decoder stops at the first padded group and
+ * ignores the rest as long as the value ends in padding or a newline, so it
+ * accepts {@code "QQ==QQ=="} where this stream rejects it.
+ */
+public class Base64InputStream extends FilterInputStream {
+    // Number of encoded bytes read from the underlying stream at a time
+    private static final int BUFFER_SIZE = 4096;
+
+    private final byte[] mDecodabet;
+
+    private final byte[] mInput = new byte[BUFFER_SIZE];
+    // Number of encoded bytes consumed before those in mInput, for error messages
+    private long mInputOffset;
+
+    // Decoded bytes not yet returned are mOutput[mOutputPos, mOutputLen). Room for
+    // a full input buffer, a group carried over and a final partial group.
+    private final byte[] mOutput = new byte[BUFFER_SIZE / 4 * 3 + 6];
+    private int mOutputPos;
+    private int mOutputLen;
+
+    // Characters of the group being decoded
+    private final byte[] mGroup = new byte[4];
+    private int mGroupLen;
+
+    // Whether padding ended the encoded value, and whether the underlying stream ended
+    private boolean mPadded;
+    private boolean mEof;
+
+    private boolean mClosed;
+
+    /** Creates a stream that decodes content in the standard alphabet. */
+    public Base64InputStream(InputStream in) {
+        this(in, false);
+    }
+
+    /**
+     * Creates a stream that decodes content in the given alphabet.
+     *
+     * @param in the stream to read the encoded data from
+     * @param webSafe whether the content uses the web safe alphabet, with '-'
+     *     instead of '+' and '_' instead of '/'
+     */
+    public Base64InputStream(InputStream in, boolean webSafe) {
+        super(in);
+        mDecodabet = webSafe ? Base64.WEBSAFE_DECODABET : Base64.DECODABET;
+    }
+
+    /**
+     * Returns a channel that reads Base64 content from the given channel and
+     * returns the decoded data. Closing the returned channel closes the given one.
+     */
+    public static ReadableByteChannel newChannel(ReadableByteChannel channel) {
+        return Channels.newChannel(new Base64InputStream(Channels.newInputStream(channel)));
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkOpen();
+        if (mOutputPos == mOutputLen && !fill()) return -1;
+        return mOutput[mOutputPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        if ((off | len | (b.length - (off + len))) < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) return 0;
+        if (mOutputPos == mOutputLen && !fill()) return -1;
+        int n = Math.min(len, mOutputLen - mOutputPos);
+        System.arraycopy(mOutput, mOutputPos, b, off, n);
+        mOutputPos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        checkOpen();
+        long skipped = 0;
+        while (skipped < n) {
+            if (mOutputPos == mOutputLen && !fill()) break;
+            int k = (int) Math.min(n - skipped, mOutputLen - mOutputPos);
+            mOutputPos += k;
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    /** Returns the number of decoded bytes that can be read without blocking. */
+    @Override
+    public int available() throws IOException {
+        checkOpen();
+        return mOutputLen - mOutputPos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+        // not supported
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        in.close();
+    }
+
+    // Reads and decodes until there is decoded data to return, or the end of the
+    // content. Returns false at the end.
+    private boolean fill() throws IOException {
+        mOutputPos = 0;
+        mOutputLen = 0;
+        while (mOutputLen == 0) {
+            if (mEof) return false;
+            int n = in.read(mInput, 0, mInput.length);
+            if (n < 0) {
+                mEof = true;
+                finishGroup(mInputOffset);
+            }
+            else {
+                decode(n);
+                mInputOffset += n;
+            }
+        }
+        return true;
+    }
+
+    // Decodes the first n bytes of mInput into mOutput.
+    private void decode(int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            if (mGroupLen == 0 && !mPadded) {
+                // Whole groups of well-formed content take the fast path.
+                int k = Base64.decodeBlocks(mInput, i, n - i, mOutput, mOutputLen, null, mDecodabet);
+                i += k;
+                mOutputLen += k / 4 * 3;
+                if (i == n) break;
+            }
+
+            byte sbiCrop = (byte) (mInput[i] & 0x7f); // Only the low seven bits
+            byte sbiDecode = mDecodabet[sbiCrop];
+            if (mPadded) {
+                // Only more padding and white space may follow padding.
+                if (sbiDecode != Base64.EQUALS_SIGN_ENC && sbiDecode != Base64.WHITE_SPACE_ENC) {
+                    throw new IOException("encoded value has invalid trailing byte at offset "
+                            + (mInputOffset + i));
+                }
+            } else if (sbiDecode >= 0) {
+                mGroup[mGroupLen++] = sbiCrop;
+                if (mGroupLen == 4) {
+                    mOutputLen += Base64.decode4to3(mGroup, 0, mOutput, mOutputLen, mDecodabet);
+                    mGroupLen = 0;
+                }
+            } else if (sbiDecode == Base64.EQUALS_SIGN_ENC) {
+                // An equals sign (for padding) must not occur at position 0 or 1
+                if (mGroupLen < 2) {
+                    throw new IOException("invalid padding byte '=' at byte offset "
+                            + (mInputOffset + i));
+                }
+                finishGroup(mInputOffset + i);
+                mPadded = true;
+            } else if (sbiDecode != Base64.WHITE_SPACE_ENC) {
+                throw new IOException("Bad Base64 input character at " + (mInputOffset + i)
+                        + ": " + mInput[i] + "(decimal)");
+            }
+        }
+    }
+
+    // Decodes the group being decoded, if any, as if it were padded with equal
+    // signs. offset is where the group ends, for error messages.
+    private void finishGroup(long offset) throws IOException {
+        if (mGroupLen == 0) return;
+        if (mGroupLen == 1) {
+            throw new IOException("single trailing character at offset " + (offset - 1));
+        }
+        while (mGroupLen < 4) {
+            mGroup[mGroupLen++] = Base64.EQUALS_SIGN;
+        }
+        mOutputLen += Base64.decode4to3(mGroup, 0, mOutput, mOutputLen, mDecodabet);
+        mGroupLen = 0;
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) throw new IOException("Stream closed");
+    }
+}
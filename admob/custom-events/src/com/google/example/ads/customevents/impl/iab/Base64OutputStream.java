@@ -0,0 +1,161 @@
+// Copyright 2002, Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An output stream that encodes the data written to it into Base64 notation and
+ * writes the result to the underlying stream, producing the same output as
+ * {@link Base64#encode(byte[], int, int, byte[], int)} would for all of the data.
+ *
+ * <p>The encoded output is buffered in a fixed size buffer, so any amount of data
+ * can be encoded in constant memory. Up to two bytes written to the stream can't
+ * be encoded until more data arrives; they are encoded, with padding, when the
+ * stream is closed. {@link #flush} therefore doesn't write them.
+ */
+public class Base64OutputStream extends FilterOutputStream {
+    // Size of the buffer of encoded output
+    private static final int BUFFER_SIZE = 4096;
+
+    private final byte[] mAlphabet;
+    private final int mMaxLineLength;
+
+    // Bytes written that don't make up a group of three yet
+    private final byte[] mPending = new byte[3];
+    private int mPendingLen;
+
+    // Encoded output not yet written to the underlying stream
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mBufferLen;
+    private int mLineLength;
+
+    private boolean mClosed;
+
+    /** Creates a stream that encodes with the standard alphabet, on a single line. */
+    public Base64OutputStream(OutputStream out) {
+        this(out, false, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a stream that encodes with the given alphabet and line length.
+     *
+     * @param out the stream to write the encoded data to
+     * @param webSafe whether to use the web safe alphabet, with '-' instead of '+'
+     *     and '_' instead of '/'
+     * @param maxLineLength maximum length of one line.
+     */
+    public Base64OutputStream(OutputStream out, boolean webSafe, int maxLineLength) {
+        super(out);
+        if (maxLineLength <= 0) {
+            throw new IllegalArgumentException("maxLineLength must be positive: " + maxLineLength);
+        }
+        mAlphabet = webSafe ? Base64.WEBSAFE_ALPHABET : Base64.ALPHABET;
+        mMaxLineLength = maxLineLength;
+    }
+
+    /**
+     * Returns a channel that encodes the data written to it into Base64 notation
+     * and writes the result to the given channel. Closing the returned channel
+     * writes the final group and closes the given channel.
+     */
+    public static WritableByteChannel newChannel(WritableByteChannel channel) {
+        return Channels.newChannel(new Base64OutputStream(Channels.newOutputStream(channel)));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        mPending[mPendingLen++] = (byte) b;
+        if (mPendingLen == 3) {
+            encodeGroup(mPending, 0, 3);
+            mPendingLen = 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        if ((off | len | (b.length - (off + len))) < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        // Complete the group left over from the last write first.
+        while (mPendingLen > 0 && len > 0) {
+            write(b[off++]);
+            len--;
+        }
+
+        int end = off + len;
+        for (; off + 3 <= end; off += 3) {
+            encodeGroup(b, off, 3);
+        }
+        while (off < end) {
+            mPending[mPendingLen++] = b[off++];
+        }
+    }
+
+    /** Writes out all complete groups encoded so far and flushes the underlying stream. */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /** Encodes the last, partial group, if any, and closes the underlying stream. */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) return;
+        try {
+            if (mPendingLen > 0) {
+                encodeGroup(mPending, 0, mPendingLen);
+                mPendingLen = 0;
+            }
+            flushBuffer();
+        }
+        finally {
+            mClosed = true;
+            out.close();
+        }
+    }
+
+    // Encodes up to three bytes into the buffer, followed by a new line if that
+    // completes a line, as Base64.encode() does.
+    private void encodeGroup(byte[] source, int off, int numSigBytes) throws IOException {
+        if (mBufferLen + 5 > BUFFER_SIZE) flushBuffer();
+        Base64.encode3to4(source, off, numSigBytes, mBuffer, mBufferLen, mAlphabet);
+        mBufferLen += 4;
+        mLineLength += 4;
+        if (mLineLength == mMaxLineLength) {
+            mBuffer[mBufferLen++] = Base64.NEW_LINE;
+            mLineLength = 0;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mBufferLen > 0) {
+            out.write(mBuffer, 0, mBufferLen);
+            mBufferLen = 0;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) throw new IOException("Stream closed");
+    }
+}
@@ -0,0 +1,301 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The process's connection to the billing service, shared by all {@link IabHelper}
+ * instances.
+ *
+ * Binding to the service and checking what it supports takes a round trip to another
+ * process and two binder calls, so it is done once: the first helper to be set up binds
+ * and runs the checks, and helpers set up while the connection is open get the service
+ * and the cached results right away. The connection counts the helpers using it; once
+ * the last one is disposed of, it stays bound for an idle period in case another helper
+ * comes along, and then unbinds.
+ *
+ * Helpers acquire and release the connection on whatever thread they are set up and
+ * disposed of on, while the service connection callbacks arrive on the main thread, so
+ * the connection state is guarded by the object's lock. Setup listeners are called
+ * after the lock is released.
+ */
+final class BillingConnection {
+    // How long the connection stays bound with no helpers, in milliseconds
+    static final long DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+
+    private static BillingConnection sInstance;
+    private static long sIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Helpers using the connection, set up or waiting for setup to finish
+    private final List<IabHelper> mHelpers = new ArrayList<IabHelper>();
+    // Helpers waiting for setup to finish, and their listeners
+    private final List<IabHelper> mPending = new ArrayList<IabHelper>();
+    private final List<IabHelper.OnIabSetupFinishedListener> mPendingListeners =
+            new ArrayList<IabHelper.OnIabSetupFinishedListener>();
+
+    private ServiceConnection mServiceConn;
+    private IInAppBillingService mService;
+    // Whether the support checks succeeded for the connected service, and what they found
+    private boolean mChecked;
+    private boolean mSubscriptionsSupported;
+
+    private final Runnable mIdleUnbind = new Runnable() {
+        public void run() {
+            synchronized (BillingConnection.this) {
+                if (mHelpers.isEmpty()) unbind();
+            }
+        }
+    };
+
+    private BillingConnection(Context context) {
+        mContext = context;
+    }
+
+    /** Returns the process's billing connection. */
+    static synchronized BillingConnection get(Context context) {
+        if (sInstance == null) sInstance = new BillingConnection(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /**
+     * Sets how long the connection stays bound after the last helper using it is
+     * disposed of; 0 unbinds right away.
+     */
+    static synchronized void setIdleTimeout(long timeoutMillis) {
+        sIdleTimeout = Math.max(0, timeoutMillis);
+    }
+
+    private static synchronized long getIdleTimeout() {
+        return sIdleTimeout;
+    }
+
+    /**
+     * Starts using the connection for a helper. If the connection is open, the helper
+     * is set up and the listener called on this thread before this returns; otherwise
+     * that happens on the main thread once the service is connected and checked.
+     */
+    void acquire(IabHelper helper, IabHelper.OnIabSetupFinishedListener listener) {
+        SetupNotification notification = null;
+        synchronized (this) {
+            mHandler.removeCallbacks(mIdleUnbind);
+            mHelpers.add(helper);
+            if (mChecked) {
+                helper.logDebug("Reusing the open billing service connection.");
+                helper.mService = mService;
+                finishSetup(helper);
+                notification = new SetupNotification(listener,
+                        new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Setup successful."));
+            }
+            else {
+                mPending.add(helper);
+                mPendingListeners.add(listener);
+                if (mServiceConn == null) notification = bind();
+            }
+        }
+        if (notification != null) notification.send();
+    }
+
+    /** Posts a task to the main thread, where the service connection callbacks arrive. */
+    void post(Runnable task) {
+        mHandler.post(task);
+    }
+
+    // Binds to the service, or fails the waiting helpers if there's none.
+    private SetupNotification bind() {
+        mServiceConn = newServiceConnection();
+        Intent serviceIntent = new Intent("com.android.vending.billing.InAppBillingService.BIND");
+        if (!mContext.getPackageManager().queryIntentServices(serviceIntent, 0).isEmpty()) {
+            // service available to handle that Intent
+            mContext.bindService(serviceIntent, mServiceConn, Context.BIND_AUTO_CREATE);
+            return null;
+        }
+        else {
+            // no service available to handle that Intent
+            mServiceConn = null;
+            return failPending(new IabResult(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
+                    "Billing service unavailable on device."));
+        }
+    }
+
+    /**
+     * Stops using the connection for a helper. When no helper is left, the connection
+     * is closed after the idle timeout.
+     */
+    synchronized void release(IabHelper helper) {
+        if (!mHelpers.remove(helper)) return;
+        int pending = mPending.indexOf(helper);
+        if (pending >= 0) {
+            mPending.remove(pending);
+            mPendingListeners.remove(pending);
+        }
+        helper.mService = null;
+        if (!mHelpers.isEmpty()) return;
+
+        long timeout = getIdleTimeout();
+        if (timeout == 0) {
+            unbind();
+        }
+        else {
+            mHandler.postDelayed(mIdleUnbind, timeout);
+        }
+    }
+
+    private ServiceConnection newServiceConnection() {
+        return new ServiceConnection() {
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                synchronized (BillingConnection.this) {
+                    if (mServiceConn != this) return;
+                    logDebug("Billing service disconnected.");
+                    // The binding stays, and the service reconnects by itself. Until it
+                    // does, helpers that start using the connection wait for it, and it is
+                    // checked again when it's back.
+                    setService(null);
+                    mChecked = false;
+                }
+            }
+
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                SetupNotification notification = null;
+                synchronized (BillingConnection.this) {
+                    if (mServiceConn != this) return;
+                    logDebug("Billing service connected.");
+                    setService(IInAppBillingService.Stub.asInterface(service));
+                    if (!mChecked) notification = checkSupport();
+                }
+                if (notification != null) notification.send();
+            }
+        };
+    }
+
+    // Hands the service to every helper using the connection.
+    private void setService(IInAppBillingService service) {
+        mService = service;
+        for (IabHelper helper : mHelpers) helper.mService = service;
+    }
+
+    // Checks what the service supports, then finishes setting up the waiting helpers.
+    // Returns what to tell their listeners.
+    private SetupNotification checkSupport() {
+        String packageName = mContext.getPackageName();
+        try {
+            logDebug("Checking for in-app billing 3 support.");
+
+            // check for in-app billing v3 support
+            int response = mService.isBillingSupported(3, packageName, IabHelper.ITEM_TYPE_INAPP);
+            if (response != IabHelper.BILLING_RESPONSE_RESULT_OK) {
+                return failPending(new IabResult(response, "Error checking for billing v3 support."));
+            }
+            logDebug("In-app billing version 3 supported for " + packageName);
+
+            // check for v3 subscriptions support
+            response = mService.isBillingSupported(3, packageName, IabHelper.ITEM_TYPE_SUBS);
+            if (response == IabHelper.BILLING_RESPONSE_RESULT_OK) {
+                logDebug("Subscriptions AVAILABLE.");
+                mSubscriptionsSupported = true;
+            }
+            else {
+                logDebug("Subscriptions NOT AVAILABLE. Response: " + response);
+                mSubscriptionsSupported = false;
+            }
+            mChecked = true;
+        }
+        catch (RemoteException e) {
+            e.printStackTrace();
+            return failPending(new IabResult(IabHelper.IABHELPER_REMOTE_EXCEPTION,
+                    "RemoteException while setting up in-app billing."));
+        }
+
+        for (IabHelper helper : mPending) finishSetup(helper);
+        SetupNotification notification = new SetupNotification(mPendingListeners,
+                new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Setup successful."));
+        mPending.clear();
+        mPendingListeners.clear();
+        return notification;
+    }
+
+    private void finishSetup(IabHelper helper) {
+        helper.mSubscriptionsSupported = mSubscriptionsSupported;
+        helper.mSetupDone = true;
+    }
+
+    // Fails the setup of the waiting helpers, and closes the connection so that the
+    // next helper tries again from scratch. Returns what to tell their listeners.
+    private SetupNotification failPending(IabResult result) {
+        SetupNotification notification = new SetupNotification(mPendingListeners, result);
+        mHelpers.removeAll(mPending);
+        for (IabHelper helper : mPending) helper.mService = null;
+        mPending.clear();
+        mPendingListeners.clear();
+        if (mHelpers.isEmpty()) unbind();
+        return notification;
+    }
+
+    // Logs through a helper using the connection, so that it follows its debug setting.
+    private void logDebug(String msg) {
+        if (!mHelpers.isEmpty()) mHelpers.get(0).logDebug(msg);
+    }
+
+    private void unbind() {
+        mHandler.removeCallbacks(mIdleUnbind);
+        if (mServiceConn != null) {
+            logDebug("Unbinding from billing service.");
+            mContext.unbindService(mServiceConn);
+            mServiceConn = null;
+        }
+        mService = null;
+        mChecked = false;
+    }
+
+    // Setup listeners to call once the lock is released, and the result to give them.
+    private static final class SetupNotification {
+        private final List<IabHelper.OnIabSetupFinishedListener> mListeners;
+        private final IabResult mResult;
+
+        SetupNotification(List<IabHelper.OnIabSetupFinishedListener> listeners, IabResult result) {
+            mListeners = new ArrayList<IabHelper.OnIabSetupFinishedListener>(listeners);
+            mResult = result;
+        }
+
+        SetupNotification(IabHelper.OnIabSetupFinishedListener listener, IabResult result) {
+            this(Collections.singletonList(listener), result);
+        }
+
+        void send() {
+            for (IabHelper.OnIabSetupFinishedListener listener : mListeners) {
+                if (listener != null) listener.onIabSetupFinished(mResult);
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.text.ParseException;
+
+/**
+ * A small pull parser for the JSON the billing service returns: purchase data and
+ * SKU details, which are flat objects of strings and numbers.
+ *
+ * The reader walks the text in place. Names are matched against the caller's keys
+ * without being copied out, and values are skipped rather than read, leaving the
+ * caller the offsets around each one; {@link #unescape} and {@link #parseLong}
+ * turn those into strings or numbers when they are needed. It depends on nothing
+ * but the JDK, so it can be exercised and measured off the device.
+ *
+ * Usage follows the structure of the document:
+ * <pre>
+ *   reader.beginObject();
+ *   while (reader.hasNext()) {
+ *       int key = reader.nextName(KEYS);
+ *       int start = reader.position();
+ *       reader.skipValue();
+ *       // the value of KEYS[key], if key != -1, is json[start, reader.position())
+ *   }
+ *   reader.endObject();
+ * </pre>
+ */
+class BillingJsonReader {
+    // Kinds of value, as returned by peek()
+    private static final int STRING = 1;
+    private static final int NUMBER = 2;     // or true, false, null
+    private static final int OBJECT = 3;
+    private static final int ARRAY = 4;
+
+    // States of the containers being read
+    private static final int EMPTY = 0;        // nothing read yet
+    private static final int NONEMPTY = 1;     // an element read, a comma or the end next
+    private static final int AFTER_COMMA = 2;  // a comma read, an element next
+
+    private final String mJson;
+    private int mPos;
+
+    // Containers being read, innermost last, and whether each is an object
+    private int[] mStates = new int[8];
+    private boolean[] mObjects = new boolean[8];
+    private int mDepth;
+
+    BillingJsonReader(String json) {
+        mJson = json;
+    }
+
+    /** Returns the offset of the next character to be read. */
+    int position() {
+        return mPos;
+    }
+
+    // Returns the kind of the next value.
+    private int peek() throws ParseException {
+        skipWhitespace();
+        char c = peekChar();
+        if (c == '"') return STRING;
+        if (c == '{') return OBJECT;
+        if (c == '[') return ARRAY;
+        return NUMBER;
+    }
+
+    void beginObject() throws ParseException {
+        beforeValue();
+        expect('{');
+        push(true);
+    }
+
+    void endObject() throws ParseException {
+        end(true, '}');
+    }
+
+    private void beginArray() throws ParseException {
+        beforeValue();
+        expect('[');
+        push(false);
+    }
+
+    private void endArray() throws ParseException {
+        end(false, ']');
+    }
+
+    /** Returns whether the current object or array has another member. */
+    boolean hasNext() throws ParseException {
+        if (mDepth == 0) throw syntaxError("Not in an object or array");
+        skipWhitespace();
+        char c = peekChar();
+        char close = mObjects[mDepth - 1] ? '}' : ']';
+        switch (mStates[mDepth - 1]) {
+            case EMPTY:
+                return c != close;
+            case AFTER_COMMA:
+                if (c == close) throw syntaxError("Expected a value");
+                return true;
+            default:
+                if (c == close) return false;
+                if (c != ',') throw syntaxError(mObjects[mDepth - 1] ? "Unterminated object"
+                                                                     : "Unterminated array");
+                mPos++;
+                mStates[mDepth - 1] = AFTER_COMMA;
+                return true;
+        }
+    }
+
+    /**
+     * Reads the name of the next member of the current object, leaving the reader
+     * at its value.
+     *
+     * @param keys the names the caller is interested in, or null
+     * @return the index in keys of the name, or -1 if it isn't one of them
+     */
+    int nextName(String[] keys) throws ParseException {
+        if (mDepth == 0 || !mObjects[mDepth - 1]) throw syntaxError("Not in an object");
+        if (!hasNext()) throw syntaxError("Expected a name");
+        int start = mPos;
+        scanString();
+        int end = mPos;
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+        mStates[mDepth - 1] = NONEMPTY;
+        return keys == null ? -1 : match(keys, start + 1, end - 1);
+    }
+
+    /** Skips the next value, including everything in it if it's an object or array. */
+    void skipValue() throws ParseException {
+        int kind = peek();
+        if (kind == OBJECT) {
+            beginObject();
+            while (hasNext()) {
+                nextName(null);
+                skipValue();
+            }
+            endObject();
+        }
+        else if (kind == ARRAY) {
+            beginArray();
+            while (hasNext()) skipValue();
+            endArray();
+        }
+        else {
+            beforeValue();
+            if (kind == STRING) {
+                scanString();
+            }
+            else {
+                scanLiteral();
+            }
+        }
+    }
+
+    /**
+     * Parses a long from text[start, end) without copying it when it is a plain
+     * integer; anything else is converted as by {@link #parseLong(String)}.
+     */
+    static long parseLong(String text, int start, int end) {
+        boolean negative = start < end && text.charAt(start) == '-';
+        int digits = negative ? start + 1 : start;
+        if (end > digits && end - digits <= 18) {
+            long value = 0;
+            int i = digits;
+            for (; i < end; i++) {
+                char c = text.charAt(i);
+                if (c < '0' || c > '9') break;
+                value = value * 10 + (c - '0');
+            }
+            if (i == end) return negative ? -value : value;
+        }
+        return parseLong(text.substring(start, end));
+    }
+
+    /** Parses a long, or a decimal truncated to one, like JSONObject.optLong(); or 0. */
+    static long parseLong(String s) {
+        try {
+            return Long.parseLong(s);
+        }
+        catch (NumberFormatException e) {
+            // not an integer; maybe a decimal
+        }
+        try {
+            return (long) Double.parseDouble(s);
+        }
+        catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    /** Returns json[start, end), the inside of a string literal, with its escapes resolved. */
+    static String unescape(String json, int start, int end) {
+        int backslash = json.indexOf('\\', start);
+        if (backslash < 0 || backslash >= end) return json.substring(start, end);
+
+        StringBuilder sb = new StringBuilder(end - start);
+        sb.append(json, start, backslash);
+        for (int i = backslash; i < end; i++) {
+            char c = json.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            c = json.charAt(++i);
+            switch (c) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    sb.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default: sb.append(c); break;
+            }
+        }
+        return sb.toString();
+    }
+
+    // Returns the index in keys of the name in mJson[start, end), or -1.
+    private int match(String[] keys, int start, int end) {
+        String unescaped = null;
+        for (int k = 0; k < keys.length; k++) {
+            String key = keys[k];
+            if (end - start == key.length() && mJson.regionMatches(start, key, 0, key.length())) {
+                return k;
+            }
+        }
+        int backslash = mJson.indexOf('\\', start);
+        if (backslash >= 0 && backslash < end) {
+            // rare: a name with escapes
+            unescaped = unescape(mJson, start, end);
+            for (int k = 0; k < keys.length; k++) {
+                if (keys[k].equals(unescaped)) return k;
+            }
+        }
+        return -1;
+    }
+
+    // Checks that a value may come next, and marks the current array as having one.
+    private void beforeValue() throws ParseException {
+        skipWhitespace();
+        if (mDepth == 0) return;
+        if (!mObjects[mDepth - 1]) {
+            if (!hasNext()) throw syntaxError("Expected a value");
+            mStates[mDepth - 1] = NONEMPTY;
+        }
+    }
+
+    private void push(boolean object) {
+        if (mDepth == mStates.length) {
+            int[] states = new int[mDepth * 2];
+            boolean[] objects = new boolean[mDepth * 2];
+            System.arraycopy(mStates, 0, states, 0, mDepth);
+            System.arraycopy(mObjects, 0, objects, 0, mDepth);
+            mStates = states;
+            mObjects = objects;
+        }
+        mStates[mDepth] = EMPTY;
+        mObjects[mDepth] = object;
+        mDepth++;
+    }
+
+    private void end(boolean object, char close) throws ParseException {
+        if (mDepth == 0 || mObjects[mDepth - 1] != object) {
+            throw syntaxError(object ? "Not in an object" : "Not in an array");
+        }
+        if (hasNext()) throw syntaxError("Expected '" + close + "'");
+        mPos++;
+        mDepth--;
+    }
+
+    private void scanString() throws ParseException {
+        expect('"');
+        int length = mJson.length();
+        while (mPos < length) {
+            char c = mJson.charAt(mPos++);
+            if (c == '"') return;
+            if (c == '\\') {
+                if (mPos >= length) break;
+                if (mJson.charAt(mPos) == 'u') {
+                    if (mPos + 5 > length) break;
+                    for (int i = mPos + 1; i < mPos + 5; i++) {
+                        if (Character.digit(mJson.charAt(i), 16) < 0) {
+                            throw syntaxError("Invalid escape sequence");
+                        }
+                    }
+                    mPos += 5;
+                }
+                else {
+                    mPos++;
+                }
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    // Scans a number, true, false or null.
+    private void scanLiteral() throws ParseException {
+        int start = mPos;
+        int length = mJson.length();
+        while (mPos < length) {
+            char c = mJson.charAt(mPos);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'
+                    || c == '-' || c == '+' || c == '.')) {
+                break;
+            }
+            mPos++;
+        }
+        if (mPos == start) throw syntaxError("Expected a value");
+    }
+
+    private void skipWhitespace() {
+        int length = mJson.length();
+        while (mPos < length) {
+            char c = mJson.charAt(mPos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') return;
+            mPos++;
+        }
+    }
+
+    private char peekChar() throws ParseException {
+        if (mPos >= mJson.length()) throw syntaxError("End of input");
+        return mJson.charAt(mPos);
+    }
+
+    private void expect(char c) throws ParseException {
+        if (peekChar() != c) throw syntaxError("Expected '" + c + "'");
+        mPos++;
+    }
+
+    private ParseException syntaxError(String message) {
+        return new ParseException(message + " at character " + mPos + " of " + mJson, mPos);
+    }
+}
@@ -0,0 +1,235 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pools shared by all {@link IabHelper} instances in the process.
+ */
+final class IabExecutors {
+    // Number of CPUs available to us; bounds the CPU-bound verification pool.
+    static final int CPU_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    // Size and queue bound of the default pool for IabHelper's asynchronous operations.
+    // Operations mostly wait on the billing service, so a couple of threads go a long way;
+    // the queue bound keeps a burst of requests from piling up work without limit.
+    static final int ASYNC_POOL_SIZE = 2;
+    static final int ASYNC_QUEUE_CAPACITY = 16;
+
+    // Maximum number of calls to the billing service we make at once on behalf of a
+    // single query, e.g. when SKU details are fetched in chunks.
+    static final int BILLING_POOL_SIZE = 4;
+
+    private static ExecutorService sVerificationPool;
+    private static ExecutorService sBillingPool;
+    private static ScheduledExecutorService sTimer;
+
+    private static ExecutorService sDefaultAsyncPool;
+    private static volatile Executor sAsyncExecutor;
+    private static final AtomicInteger sAsyncThreadsCreated = new AtomicInteger();
+    private static final AtomicLong sAsyncRejections = new AtomicLong();
+
+    private IabExecutors() { }
+
+    /**
+     * Returns the pool that runs CPU-bound work such as signature verification and
+     * JSON parsing. It has at most one thread per CPU.
+     */
+    static synchronized ExecutorService verificationPool() {
+        if (sVerificationPool == null) {
+            // Threads are only started as work arrives, so apps that never query
+            // large inventories never pay for them.
+            sVerificationPool = new ThreadPoolExecutor(CPU_COUNT, CPU_COUNT,
+                    0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    newThreadFactory("IabHelper-verify"));
+        }
+        return sVerificationPool;
+    }
+
+    /**
+     * Returns the pool that makes blocking calls to the billing service in parallel.
+     * Its threads spend their time waiting on the service rather than on a CPU, so
+     * its size doesn't depend on the number of CPUs.
+     */
+    static synchronized ExecutorService billingPool() {
+        if (sBillingPool == null) {
+            sBillingPool = new ThreadPoolExecutor(BILLING_POOL_SIZE, BILLING_POOL_SIZE,
+                    0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    newThreadFactory("IabHelper-billing"));
+        }
+        return sBillingPool;
+    }
+
+    /**
+     * Returns the thread that fires the deadlines of asynchronous operations. Its
+     * tasks only fail futures that are still pending, so one thread is enough.
+     */
+    static synchronized ScheduledExecutorService timer() {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, newThreadFactory("IabHelper-timer"));
+        }
+        return sTimer;
+    }
+
+    /**
+     * Returns the executor that runs the background part of IabHelper's asynchronous
+     * operations: the one set with {@link #setAsyncExecutor}, or else a pool of
+     * {@link #ASYNC_POOL_SIZE} threads with room for {@link #ASYNC_QUEUE_CAPACITY}
+     * waiting operations.
+     */
+    static Executor asyncExecutor() {
+        Executor executor = sAsyncExecutor;
+        return executor != null ? executor : defaultAsyncPool();
+    }
+
+    /** Replaces the async executor; null restores the default pool. */
+    static void setAsyncExecutor(Executor executor) {
+        sAsyncExecutor = executor;
+    }
+
+    /**
+     * Schedules a task on the async executor.
+     *
+     * @return false if the executor rejected the task, e.g. because its queue is full.
+     */
+    static boolean executeAsync(Runnable task) {
+        try {
+            asyncExecutor().execute(task);
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            sAsyncRejections.incrementAndGet();
+            return false;
+        }
+    }
+
+    /** Returns the number of threads the default async pool has started so far. */
+    static int asyncThreadsCreated() {
+        return sAsyncThreadsCreated.get();
+    }
+
+    /** Returns the number of tasks the async executor has rejected so far. */
+    static long asyncRejections() {
+        return sAsyncRejections.get();
+    }
+
+    private static synchronized ExecutorService defaultAsyncPool() {
+        if (sDefaultAsyncPool == null) {
+            sDefaultAsyncPool = new ThreadPoolExecutor(ASYNC_POOL_SIZE, ASYNC_POOL_SIZE,
+                    0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(ASYNC_QUEUE_CAPACITY),
+                    newThreadFactory("IabHelper-async", sAsyncThreadsCreated));
+        }
+        return sDefaultAsyncPool;
+    }
+
+    /** Returns a factory for daemon threads named {@code prefix-1}, {@code prefix-2}, ... */
+    static ThreadFactory newThreadFactory(String prefix) {
+        return newThreadFactory(prefix, new AtomicInteger());
+    }
+
+    /**
+     * Like {@link #newThreadFactory(String)}, numbering threads with the given counter,
+     * which is left holding the number of threads created.
+     */
+    static ThreadFactory newThreadFactory(final String prefix, final AtomicInteger count) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Runs all tasks and returns their results in task order. The first task runs on
+     * the calling thread and the rest are handed to the executor; any task the
+     * executor hasn't started by the time the caller gets to it is run by the caller
+     * as well. This means a full or rejecting executor only costs parallelism, and
+     * it's safe to call this from a thread of the same executor.
+     *
+     * @throws ExecutionException wrapping the exception thrown by the first failed
+     *     task, in task order.
+     */
+    static <T> List<T> invokeAll(Executor executor, List<? extends Callable<T>> tasks)
+            throws ExecutionException {
+        int n = tasks.size();
+        List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(n);
+        for (int i = 0; i < n; i++) {
+            FutureTask<T> future = new FutureTask<T>(tasks.get(i));
+            futures.add(future);
+            if (i == 0) continue;
+            try {
+                executor.execute(future);
+            }
+            catch (RejectedExecutionException e) {
+                // we'll run it ourselves below
+            }
+        }
+
+        // Help out: FutureTask.run() is a no-op for tasks another thread has started.
+        for (FutureTask<T> future : futures) future.run();
+
+        List<T> results = new ArrayList<T>(n);
+        boolean interrupted = false;
+        try {
+            for (FutureTask<T> future : futures) {
+                while (true) {
+                    try {
+                        results.add(future.get());
+                        break;
+                    }
+                    catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        }
+        finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+
+    /**
+     * Rethrows the cause of an exception from {@link #invokeAll} if it is unchecked;
+     * otherwise returns it, for the caller to rethrow as the checked type it declares.
+     */
+    static Throwable rethrowUnchecked(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        return cause;
+    }
+}
@@ -0,0 +1,425 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of an asynchronous {@link IabHelper} operation. It either
+ * succeeds with a value or fails with an {@link IabException} carrying the
+ * {@link IabResult} that says what went wrong.
+ *
+ * Besides blocking with {@link #get}, callers can chain further stages with
+ * {@link #then} and {@link #thenCompose}, and receive the outcome with
+ * {@link #addCallback}; each takes the {@link Executor} to run on. For instance, to
+ * set up, query the inventory and consume a purchase in the background, and only
+ * come back to the main thread at the end:
+ * <pre>
+ *   helper.startSetup()
+ *       .thenCompose(queryInventory, IabFuture.directExecutor())
+ *       .thenCompose(consumeIfOwned, IabFuture.backgroundExecutor())
+ *       .addCallback(showResult, IabFuture.mainThreadExecutor());
+ * </pre>
+ * This works like a small CompletableFuture, for runtimes that don't have one.
+ *
+ * A future is also the handle for stopping the operation behind it. {@link #cancel}
+ * fails it with {@link IabHelper#IABHELPER_CANCELLED}, and {@link #withTimeout} gives
+ * it a deadline, after which it fails with {@link IabHelper#IABHELPER_TIMEOUT}. Either
+ * way the operation frees its place in the helper's queue of asynchronous operations
+ * and doesn't publish anything it finds later, such as an inventory, although a call
+ * to the billing service that is already under way can't be stopped. Stopping a
+ * future returned by {@link #then} or {@link #thenCompose} also stops the stages
+ * before it.
+ */
+public class IabFuture<T> implements Future<T> {
+    /** A stage of a chain: turns the value of one future into the next. */
+    public interface Function<A, B> {
+        /**
+         * Returns the value for the next stage, or throws to fail it.
+         */
+        public B apply(A value) throws IabException;
+    }
+
+    /** Receives the outcome of a future. */
+    public interface Callback<T> {
+        /** Called with the value when the future succeeds. */
+        public void onSuccess(T value);
+
+        /** Called with the failure when the future fails or is cancelled. */
+        public void onFailure(IabException e);
+    }
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    private static Executor sMainThreadExecutor;
+
+    private boolean mDone;
+    private boolean mCancelled;
+    // Whether the future was cancelled or timed out, rather than completed
+    private boolean mAborted;
+    private T mValue;
+    private IabException mFailure;
+    // Run when the future completes; null once it has
+    private List<Runnable> mListeners = new ArrayList<Runnable>();
+
+    IabFuture() { }
+
+    /** Returns a future that has already succeeded with the given value. */
+    public static <T> IabFuture<T> completed(T value) {
+        IabFuture<T> future = new IabFuture<T>();
+        future.complete(value);
+        return future;
+    }
+
+    /** Returns a future that has already failed with the given exception. */
+    public static <T> IabFuture<T> failed(IabException e) {
+        IabFuture<T> future = new IabFuture<T>();
+        future.fail(e);
+        return future;
+    }
+
+    /** Returns an executor that runs tasks right away, on the thread completing the future. */
+    public static Executor directExecutor() {
+        return DIRECT_EXECUTOR;
+    }
+
+    /** Returns an executor that runs tasks on the main thread. */
+    public static synchronized Executor mainThreadExecutor() {
+        if (sMainThreadExecutor == null) {
+            sMainThreadExecutor = handlerExecutor(new Handler(Looper.getMainLooper()));
+        }
+        return sMainThreadExecutor;
+    }
+
+    /**
+     * Returns the executor for IabHelper's background work (see
+     * {@link IabHelper#setAsyncExecutor}), on which stages may block on the billing service.
+     */
+    public static Executor backgroundExecutor() {
+        return IabExecutors.asyncExecutor();
+    }
+
+    /** Returns an executor that posts tasks to the given handler. */
+    static Executor handlerExecutor(final Handler handler) {
+        return new Executor() {
+            public void execute(Runnable command) {
+                if (!handler.post(command)) throw new RejectedExecutionException("Handler is exiting.");
+            }
+        };
+    }
+
+    /**
+     * Returns an executor that runs tasks right away when called on the handler's
+     * thread, and posts them to the handler otherwise.
+     */
+    static Executor looperExecutor(final Handler handler) {
+        final Executor post = handlerExecutor(handler);
+        return new Executor() {
+            public void execute(Runnable command) {
+                if (Looper.myLooper() == handler.getLooper()) {
+                    command.run();
+                }
+                else {
+                    post.execute(command);
+                }
+            }
+        };
+    }
+
+    /** Succeeds with the given value, unless the future is already done. */
+    boolean complete(T value) {
+        return finish(value, null, false, false);
+    }
+
+    /** Fails with the given exception, unless the future is already done. */
+    boolean fail(IabException e) {
+        return finish(null, e, false, false);
+    }
+
+    /**
+     * Cancels the future and the operation behind it, unless the future is already
+     * done. Stages and callbacks waiting on it fail with an
+     * {@link IabHelper#IABHELPER_CANCELLED} result.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, new IabException(IabHelper.IABHELPER_CANCELLED, "Operation cancelled."),
+                true, true);
+    }
+
+    /**
+     * Gives the future a deadline: if it isn't done within the given time, it and the
+     * operation behind it are stopped as by {@link #cancel}, except that it fails with
+     * an {@link IabHelper#IABHELPER_TIMEOUT} result. 0 means no deadline. Calling this
+     * again sets another deadline; the earliest one wins.
+     *
+     * @return this future.
+     */
+    public IabFuture<T> withTimeout(long timeoutMillis) {
+        if (timeoutMillis <= 0 || isDone()) return this;
+        final ScheduledFuture<?> timer = IabExecutors.timer().schedule(new Runnable() {
+            public void run() {
+                finish(null, new IabException(IabHelper.IABHELPER_TIMEOUT, "Operation timed out."),
+                        false, true);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        whenDone(new Runnable() {
+            public void run() {
+                timer.cancel(false);
+            }
+        });
+        return this;
+    }
+
+    /** Returns whether the future was cancelled or timed out. */
+    synchronized boolean isAborted() {
+        return mAborted;
+    }
+
+    /**
+     * Runs the listener, on the thread that stops the future, if the future is
+     * cancelled or times out. This is how an operation learns that it should stop.
+     */
+    void addAbortListener(final Runnable listener) {
+        whenDone(new Runnable() {
+            public void run() {
+                if (isAborted()) listener.run();
+            }
+        });
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!mDone) wait();
+        return getNow();
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getNow();
+    }
+
+    // Returns the outcome of a completed future. Called holding the lock.
+    private T getNow() throws ExecutionException {
+        if (mCancelled) throw new CancellationException(mFailure.getMessage());
+        if (mFailure != null) throw new ExecutionException(mFailure.getMessage(), mFailure);
+        return mValue;
+    }
+
+    /**
+     * Calls the callback with the outcome of this future, on the given executor. If the
+     * executor rejects the call, it is made on the current thread instead.
+     */
+    public void addCallback(final Callback<? super T> callback, final Executor executor) {
+        whenDone(new Runnable() {
+            public void run() {
+                Runnable call = new Runnable() {
+                    public void run() {
+                        IabException failure = getFailure();
+                        if (failure == null) {
+                            callback.onSuccess(getValue());
+                        }
+                        else {
+                            callback.onFailure(failure);
+                        }
+                    }
+                };
+                try {
+                    executor.execute(call);
+                }
+                catch (RejectedExecutionException e) {
+                    call.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a future for the value of this one passed through fn, which runs on the
+     * given executor. If this future fails, so does the returned one, and fn isn't run.
+     */
+    public <U> IabFuture<U> then(final Function<? super T, ? extends U> fn, final Executor executor) {
+        final IabFuture<U> next = new IabFuture<U>();
+        whenDone(new Runnable() {
+            public void run() {
+                IabException failure = getFailure();
+                if (failure != null) {
+                    next.fail(failure);
+                    return;
+                }
+                runStage(next, executor, new Runnable() {
+                    public void run() {
+                        if (next.isDone()) return; // stopped before the stage got to run
+                        try {
+                            next.complete(fn.apply(getValue()));
+                        }
+                        catch (IabException e) {
+                            next.fail(e);
+                        }
+                    }
+                });
+            }
+        });
+        abortWith(next, null);
+        return next;
+    }
+
+    /**
+     * Returns a future for the future that fn, run on the given executor, makes from the
+     * value of this one. If this future fails, so does the returned one, and fn isn't run.
+     */
+    public <U> IabFuture<U> thenCompose(final Function<? super T, IabFuture<U>> fn,
+                                        final Executor executor) {
+        final IabFuture<U> next = new IabFuture<U>();
+        final List<IabFuture<?>> innerHolder = new ArrayList<IabFuture<?>>(1);
+        whenDone(new Runnable() {
+            public void run() {
+                IabException failure = getFailure();
+                if (failure != null) {
+                    next.fail(failure);
+                    return;
+                }
+                runStage(next, executor, new Runnable() {
+                    public void run() {
+                        if (next.isDone()) return; // stopped before the stage got to run
+                        try {
+                            IabFuture<U> inner = fn.apply(getValue());
+                            if (inner == null) throw new NullPointerException("Stage returned no future.");
+                            synchronized (innerHolder) {
+                                innerHolder.add(inner);
+                            }
+                            if (next.isAborted()) inner.cancel(false);
+                            inner.addCallback(new Callback<U>() {
+                                public void onSuccess(U value) {
+                                    next.complete(value);
+                                }
+
+                                public void onFailure(IabException e) {
+                                    next.fail(e);
+                                }
+                            }, DIRECT_EXECUTOR);
+                        }
+                        catch (IabException e) {
+                            next.fail(e);
+                        }
+                    }
+                });
+            }
+        });
+        abortWith(next, innerHolder);
+        return next;
+    }
+
+    // Stops this future, and the future of the stage after it if one was made, when
+    // next is stopped.
+    private void abortWith(IabFuture<?> next, final List<IabFuture<?>> innerHolder) {
+        next.addAbortListener(new Runnable() {
+            public void run() {
+                cancel(false);
+                if (innerHolder == null) return;
+                synchronized (innerHolder) {
+                    for (IabFuture<?> inner : innerHolder) inner.cancel(false);
+                }
+            }
+        });
+    }
+
+    // Runs a stage that completes next on the executor. A stage that can't be scheduled,
+    // or that throws, fails next.
+    private static void runStage(final IabFuture<?> next, Executor executor, final Runnable stage) {
+        Runnable guarded = new Runnable() {
+            public void run() {
+                try {
+                    stage.run();
+                }
+                catch (RuntimeException e) {
+                    next.fail(new IabException(IabHelper.IABHELPER_UNKNOWN_ERROR,
+                            "Operation stage failed: " + e, e));
+                }
+            }
+        };
+        try {
+            executor.execute(guarded);
+        }
+        catch (RejectedExecutionException e) {
+            next.fail(new IabException(IabHelper.IABHELPER_UNKNOWN_ERROR,
+                    "Too many asynchronous operations pending."));
+        }
+    }
+
+    // Runs the listener once the future is done: right away if it already is.
+    private void whenDone(Runnable listener) {
+        synchronized (this) {
+            if (!mDone) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    private boolean finish(T value, IabException failure, boolean cancelled, boolean aborted) {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mDone) return false;
+            mDone = true;
+            mValue = value;
+            mFailure = failure;
+            mCancelled = cancelled;
+            mAborted = aborted;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        for (Runnable listener : listeners) listener.run();
+        return true;
+    }
+
+    private synchronized T getValue() {
+        return mValue;
+    }
+
+    private synchronized IabException getFailure() {
+        return mFailure;
+    }
+}
@@ -17,15 +17,14 @@ package com.google.example.ads.customevents.impl.iab;
 
 import android.app.Activity;
 import android.app.PendingIntent;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender.SendIntentException;
-import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -33,8 +32,27 @@ import com.android.vending.billing.IInAppBillingService;
 
 import org.json.JSONException;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -62,9 +80,18 @@ import java.util.List;
  * A note about threading: When using this object from a background thread, you may
  * call the blocking versions of methods; when using from a UI thread, call
  * only the asynchronous versions and handle the results via callbacks.
- * Also, notice that you can only call one asynchronous operation at a time;
- * attempting to start a second asynchronous operation while the first one
- * has not yet completed will result in an exception being thrown.
+ * Asynchronous operations run on a small thread pool shared by all instances
+ * (see {@link #setAsyncExecutor}). An asynchronous operation started while
+ * another one is in progress is queued until it can run: purchases and consumes
+ * go ahead of inventory refreshes, and inventory refreshes may run alongside
+ * each other.
+ *
+ * Most asynchronous operations also come in a variant that returns an
+ * {@link IabFuture} instead of taking a listener. Futures can be chained, with
+ * each stage on the executor of your choice, so that a sequence such as setup,
+ * inventory query and consume only comes back to the UI thread at the end.
+ * A future is also the handle to cancel its operation or give it a deadline (see
+ * {@link IabFuture#withTimeout} and {@link #setAsyncTimeout}).
  *
  *
  */
@@ -79,20 +106,48 @@ public class IabHelper {
     // Are subscriptions supported?
     boolean mSubscriptionsSupported = false;
 
-    // Is an asynchronous operation in progress?
-    // (only one at a time can be in progress)
-    boolean mAsyncInProgress = false;
+    // Asynchronous operations, queued until it's their turn to run
+    final AsyncOperationQueue mAsyncQueue = new AsyncOperationQueue();
+
+    // The last inventory queried, and how long it may be served without a refresh
+    // (0 disables the cache)
+    final InventoryCache mInventoryCache = new InventoryCache();
+    long mInventoryCacheTtl = 0;
+
+    // How many consumes of a batch may be in progress at once, and how long, in
+    // milliseconds, each may take before it's reported as timed out (0 for no limit)
+    int mConsumeConcurrency = IabExecutors.BILLING_POOL_SIZE;
+    long mConsumeTimeout = 0;
+
+    // Deadline, in milliseconds, given to each asynchronous operation other than
+    // purchase flows (0 for none)
+    long mAsyncTimeout = 0;
+
+    // Whether the inventory is saved to disk for loadInventorySnapshot, and the lock
+    // that keeps snapshot writes from different threads apart
+    boolean mSnapshotEnabled = false;
+    final Object mSnapshotLock = new Object();
+
+    // Told on the main thread about purchases that appear or disappear between
+    // inventory queries; may be null
+    volatile OnInventoryChangedListener mInventoryChangedListener;
+
+    // Inventory queries queued or running, for queryInventoryAsync callers to join
+    final List<InventoryQuery> mInventoryQueries = new ArrayList<InventoryQuery>();
 
-    // (for logging/debugging)
-    // if mAsyncInProgress == true, what asynchronous operation is in progress?
-    String mAsyncOperation = "";
+    // The purchase flow operation waiting for handleActivityResult, if any, and the
+    // future it reports to, if it was launched through the future variant
+    AsyncOperationQueue.Operation mPurchaseOperation;
+    IabFuture<?> mPurchaseFuture;
 
     // Context we were passed during initialization
     Context mContext;
 
-    // Connection to the service
-    IInAppBillingService mService;
-    ServiceConnection mServiceConn;
+    // Connection to the service; mService is kept up to date by mConnection
+    volatile IInAppBillingService mService;
+    volatile BillingConnection mConnection;
+    // The future of the setup in progress or done, if any
+    volatile IabFuture<IabResult> mSetupFuture;
 
     // The request code used to launch purchase flow
     int mRequestCode;
@@ -125,6 +180,8 @@ public class IabHelper {
     public static final int IABHELPER_UNKNOWN_ERROR = -1008;
     public static final int IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE = -1009;
     public static final int IABHELPER_INVALID_CONSUMPTION = -1010;
+    public static final int IABHELPER_TIMEOUT = -1011;
+    public static final int IABHELPER_CANCELLED = -1012;
 
     // Keys for the responses from InAppBillingService
     public static final String RESPONSE_CODE = "RESPONSE_CODE";
@@ -141,6 +198,24 @@ public class IabHelper {
     public static final String ITEM_TYPE_INAPP = "inapp";
     public static final String ITEM_TYPE_SUBS = "subs";
 
+    // Pages with fewer purchases per CPU than this are verified on the calling thread;
+    // below that, handing work to other threads costs more than it saves.
+    static final int MIN_PURCHASES_PER_SLICE = 8;
+
+    // Maximum number of pages of purchases fetched but not yet verified; once this many
+    // are waiting, fetching waits for verification to catch up.
+    static final int MAX_PAGES_IN_FLIGHT = 2;
+
+    // Longest a background operation waits on billing calls before checking again
+    // whether it has been abandoned, in milliseconds
+    static final long ABANDON_CHECK_INTERVAL = 100;
+
+    // Maximum number of SKUs the billing service accepts in one getSkuDetails() call
+    static final int MAX_SKUS_PER_DETAILS_REQUEST = 20;
+
+    // Name of the inventory snapshot file in the app's files directory
+    static final String INVENTORY_SNAPSHOT_FILE = "iab_inventory.snapshot";
+
     // some fields on the getSkuDetails response bundle
     public static final String GET_SKU_DETAILS_ITEM_LIST = "ITEM_ID_LIST";
     public static final String GET_SKU_DETAILS_ITEM_TYPE_LIST = "ITEM_TYPE_LIST";
@@ -174,6 +249,147 @@ public class IabHelper {
         mDebugLog = enable;
     }
 
+    /**
+     * Enables or disables the inventory cache. While enabled, {@link #queryInventoryAsync}
+     * answers from the last inventory queried if it is younger than the given time to
+     * live. Once it is older, it is still returned right away, and a refresh is started
+     * in the background for the next caller. Consumes and purchases made through this
+     * helper update the cached inventory directly.
+     *
+     * @param ttlMillis how long, in milliseconds, a queried inventory is considered
+     *     fresh; 0 disables the cache.
+     */
+    public void setInventoryCacheTtl(long ttlMillis) {
+        mInventoryCacheTtl = ttlMillis;
+        if (ttlMillis <= 0) mInventoryCache.invalidate();
+    }
+
+    /**
+     * Sets how many purchases of a {@link #consumeAsync(List, OnConsumeMultiFinishedListener)}
+     * batch are consumed at once. Calls to the billing service are made on a shared pool
+     * of {@link IabExecutors#BILLING_POOL_SIZE} threads, so higher values have no effect.
+     * The default is the size of that pool; 1 consumes the purchases one after another.
+     */
+    public void setConsumeConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Consume concurrency must be at least 1: " + concurrency);
+        }
+        mConsumeConcurrency = concurrency;
+    }
+
+    /**
+     * Sets how long an asynchronous consume of a single purchase may take. A purchase
+     * that takes longer is reported with an {@link #IABHELPER_TIMEOUT} result, and the
+     * batch moves on. The billing service may still complete the consume afterwards,
+     * so query the inventory to find out whether the purchase is still owned.
+     *
+     * @param timeoutMillis the time limit in milliseconds, or 0 for none (the default).
+     */
+    public void setConsumeTimeout(long timeoutMillis) {
+        mConsumeTimeout = Math.max(0, timeoutMillis);
+    }
+
+    /**
+     * Sets a deadline for each asynchronous operation started from now on: setup,
+     * inventory queries and consumes, but not purchase flows, which wait on the user.
+     * An operation that isn't done in time reports an {@link #IABHELPER_TIMEOUT} result,
+     * frees its place in the queue of asynchronous operations, and publishes nothing it
+     * finds later. A binder call that hangs can't be stopped, but the caller no longer
+     * waits for it. Use {@link IabFuture#withTimeout} to set a deadline for a single
+     * operation.
+     *
+     * @param timeoutMillis the deadline in milliseconds, or 0 for none (the default).
+     */
+    public void setAsyncTimeout(long timeoutMillis) {
+        mAsyncTimeout = Math.max(0, timeoutMillis);
+    }
+
+    /**
+     * Sets the executor that runs the background work of asynchronous operations
+     * ({@link #queryInventoryAsync}, {@link #consumeAsync}) for all IabHelper instances.
+     * By default this is a small pool of named daemon threads with a bounded queue;
+     * pass null to go back to it. If the executor rejects an operation, the operation's
+     * listener is called with an {@link #IABHELPER_UNKNOWN_ERROR} result.
+     */
+    public static void setAsyncExecutor(Executor executor) {
+        IabExecutors.setAsyncExecutor(executor);
+    }
+
+    /** Returns the number of threads started so far by the default async executor. */
+    public static int getAsyncThreadsCreated() {
+        return IabExecutors.asyncThreadsCreated();
+    }
+
+    /** Returns the number of asynchronous operations rejected so far by the async executor. */
+    public static long getAsyncRejectedCount() {
+        return IabExecutors.asyncRejections();
+    }
+
+    /**
+     * Sets a listener to be told, on the main thread, which purchases were added and
+     * which were removed each time an inventory query finds them different from the
+     * last inventory this helper knew of (the cached one, if any). Pass null to stop.
+     */
+    public void setOnInventoryChangedListener(OnInventoryChangedListener listener) {
+        mInventoryChangedListener = listener;
+    }
+
+    /**
+     * Enables or disables saving the inventory to app storage. While enabled, each
+     * inventory query and each consume or purchase through this helper updates the
+     * saved copy, which {@link #loadInventorySnapshot} can read back on the next launch.
+     * Disabling it deletes the saved copy.
+     */
+    public void enableInventorySnapshot(boolean enable) {
+        mSnapshotEnabled = enable;
+        if (!enable) {
+            synchronized (mSnapshotLock) {
+                getSnapshotFile(mContext).delete();
+            }
+        }
+    }
+
+    /**
+     * Loads the inventory saved by an IabHelper with snapshots enabled (see
+     * {@link #enableInventorySnapshot}). This does not need the billing service, so it
+     * can be used to make decisions right at startup, before setup completes; a live
+     * {@link #queryInventory} should still follow to pick up changes. Each purchase's
+     * signature is verified again the first time the purchase is looked up, and
+     * purchases that fail are dropped.
+     *
+     * @param ctx Your application or Activity context.
+     * @param base64PublicKey Your application's public key, as passed to the constructor.
+     * @return the saved inventory, or null if there is none or it can't be read.
+     */
+    public static Inventory loadInventorySnapshot(Context ctx, String base64PublicKey) {
+        return InventorySnapshot.read(getSnapshotFile(ctx.getApplicationContext()), base64PublicKey);
+    }
+
+    static File getSnapshotFile(Context ctx) {
+        return new File(ctx.getFilesDir(), INVENTORY_SNAPSHOT_FILE);
+    }
+
+    // Saves the cached inventory to disk, if snapshots are enabled. If the cache was
+    // cleared, the snapshot is deleted rather than left behind out of date.
+    void saveInventorySnapshot() {
+        if (!mSnapshotEnabled) return;
+        synchronized (mSnapshotLock) {
+            File file = getSnapshotFile(mContext);
+            Inventory inv = mInventoryCache.peek();
+            if (inv == null) {
+                file.delete();
+                return;
+            }
+            try {
+                InventorySnapshot.write(file, inv);
+            }
+            catch (IOException e) {
+                logWarn("Failed to save inventory snapshot: " + e);
+                file.delete();
+            }
+        }
+    }
+
     /**
      * Callback for setup process. This listener's {@link #onIabSetupFinished} method is called
      * when the setup process is complete.
@@ -190,83 +406,77 @@ public class IabHelper {
     /**
      * Starts the setup process. This will start up the setup process asynchronously.
      * You will be notified through the listener when the setup process is complete.
+     * If another helper in the process is already connected to the billing service,
+     * the connection is shared and the listener is called before this method returns.
      * This method is safe to call from a UI thread.
      *
      * @param listener The listener to notify when the setup process is complete.
      */
     public void startSetup(final OnIabSetupFinishedListener listener) {
-        // If already set up, can't do it again.
-        if (mSetupDone) throw new IllegalStateException("IAB helper is already set up.");
-
-        // Connection to IAB service
-        logDebug("Starting in-app billing setup.");
-        mServiceConn = new ServiceConnection() {
-            @Override
-            public void onServiceDisconnected(ComponentName name) {
-                logDebug("Billing service disconnected.");
-                mService = null;
+        // Report back on the calling thread if it has a Looper; if it has none, on whichever
+        // thread setup finishes on.
+        Executor executor = Looper.myLooper() != null
+                ? IabFuture.looperExecutor(new Handler()) : IabFuture.directExecutor();
+        startSetup().addCallback(new IabFuture.Callback<IabResult>() {
+            public void onSuccess(IabResult result) {
+                if (listener != null) listener.onIabSetupFinished(result);
             }
 
-            @Override
-            public void onServiceConnected(ComponentName name, IBinder service) {
-                logDebug("Billing service connected.");
-                mService = IInAppBillingService.Stub.asInterface(service);
-                String packageName = mContext.getPackageName();
-                try {
-                    logDebug("Checking for in-app billing 3 support.");
-
-                    // check for in-app billing v3 support
-                    int response = mService.isBillingSupported(3, packageName, ITEM_TYPE_INAPP);
-                    if (response != BILLING_RESPONSE_RESULT_OK) {
-                        if (listener != null) listener.onIabSetupFinished(new IabResult(response,
-                                "Error checking for billing v3 support."));
-
-                        // if in-app purchases aren't supported, neither are subscriptions.
-                        mSubscriptionsSupported = false;
-                        return;
-                    }
-                    logDebug("In-app billing version 3 supported for " + packageName);
+            public void onFailure(IabException e) {
+                if (listener != null) listener.onIabSetupFinished(e.getResult());
+            }
+        }, executor);
+    }
 
-                    // check for v3 subscriptions support
-                    response = mService.isBillingSupported(3, packageName, ITEM_TYPE_SUBS);
-                    if (response == BILLING_RESPONSE_RESULT_OK) {
-                        logDebug("Subscriptions AVAILABLE.");
-                        mSubscriptionsSupported = true;
-                    }
-                    else {
-                        logDebug("Subscriptions NOT AVAILABLE. Response: " + response);
-                    }
+    /**
+     * Same as {@link #startSetup(OnIabSetupFinishedListener)}, but returns the result
+     * as a future, which fails with an {@link IabException} if setup does. If setup
+     * fails, is cancelled or times out, the helper stops waiting for the billing service
+     * and setup may be started again. This method is safe to call from a UI thread.
+     */
+    public IabFuture<IabResult> startSetup() {
+        // If already set up, can't do it again.
+        if (mSetupDone || mConnection != null) throw new IllegalStateException("IAB helper is already set up.");
 
-                    mSetupDone = true;
+        // Connection to IAB service, shared with the other helpers in the process
+        logDebug("Starting in-app billing setup.");
+        final BillingConnection connection = BillingConnection.get(mContext);
+        final IabFuture<IabResult> future = new IabFuture<IabResult>();
+        mConnection = connection;
+        mSetupFuture = future;
+        connection.acquire(this, new OnIabSetupFinishedListener() {
+            public void onIabSetupFinished(IabResult result) {
+                if (result.isSuccess()) {
+                    future.complete(result);
                 }
-                catch (RemoteException e) {
-                    if (listener != null) {
-                        listener.onIabSetupFinished(new IabResult(IABHELPER_REMOTE_EXCEPTION,
-                                                    "RemoteException while setting up in-app billing."));
+                else {
+                    // The connection has already let go of this helper; forget it too,
+                    // so that setup can be tried again.
+                    if (mSetupFuture == future) {
+                        mConnection = null;
+                        mSetupFuture = null;
                     }
-                    e.printStackTrace();
-                    return;
-                }
-
-                if (listener != null) {
-                    listener.onIabSetupFinished(new IabResult(BILLING_RESPONSE_RESULT_OK, "Setup successful."));
+                    future.fail(new IabException(result));
                 }
             }
-        };
-
-        Intent serviceIntent = new Intent("com.android.vending.billing.InAppBillingService.BIND");
-        if (!mContext.getPackageManager().queryIntentServices(serviceIntent, 0).isEmpty()) {
-            // service available to handle that Intent
-            mContext.bindService(serviceIntent, mServiceConn, Context.BIND_AUTO_CREATE);
-        }
-        else {
-            // no service available to handle that Intent
-            if (listener != null) {
-                listener.onIabSetupFinished(
-                        new IabResult(BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
-                        "Billing service unavailable on device."));
+        });
+        future.addAbortListener(new Runnable() {
+            public void run() {
+                // Timeouts fire on the timer thread; give up on the main thread, where
+                // setup and disposal normally happen, unless the helper has moved on.
+                connection.post(new Runnable() {
+                    public void run() {
+                        if (mSetupFuture != future) return;
+                        logDebug("Abandoning in-app billing setup.");
+                        connection.release(IabHelper.this);
+                        mConnection = null;
+                        mSetupFuture = null;
+                        mSetupDone = false;
+                    }
+                });
             }
-        }
+        });
+        return future.withTimeout(mAsyncTimeout);
     }
 
     /**
@@ -278,15 +488,25 @@ public class IabHelper {
     public void dispose() {
         logDebug("Disposing.");
         mSetupDone = false;
-        if (mServiceConn != null) {
-            logDebug("Unbinding from service.");
-            if (mContext != null) mContext.unbindService(mServiceConn);
-            mServiceConn = null;
+        mSetupFuture = null;
+        if (mConnection != null) {
+            logDebug("Releasing service connection.");
+            mConnection.release(this);
+            mConnection = null;
             mService = null;
             mPurchaseListener = null;
         }
     }
 
+    /**
+     * Sets how long the billing service connection shared by all IabHelper instances
+     * stays open after the last of them is disposed of, so that a helper set up soon
+     * after can use it right away. The default is 30 seconds; 0 closes it immediately.
+     */
+    public static void setConnectionIdleTimeout(long timeoutMillis) {
+        BillingConnection.setIdleTimeout(timeoutMillis);
+    }
+
     /** Returns whether subscriptions are supported. */
     public boolean subscriptionsSupported() {
         return mSubscriptionsSupported;
@@ -351,14 +571,100 @@ public class IabHelper {
      *     and will always be returned when the purchase is queried.
      */
     public void launchPurchaseFlow(Activity act, String sku, String itemType, int requestCode,
-                        OnIabPurchaseFinishedListener listener, String extraData) {
+                                   OnIabPurchaseFinishedListener listener, String extraData) {
+        launchPurchaseFlow(act, sku, itemType, requestCode, listener, extraData, null);
+    }
+
+    // Launches the purchase flow. future, if not null, is the one the listener reports
+    // to; if it is stopped, the flow is abandoned.
+    void launchPurchaseFlow(final Activity act, final String sku, final String itemType,
+                            final int requestCode, final OnIabPurchaseFinishedListener listener,
+                            final String extraData, final IabFuture<?> future) {
         checkSetupDone("launchPurchaseFlow");
-        flagStartAsync("launchPurchaseFlow");
+        final Handler handler = new Handler();
+        startAsync(new AsyncOperationQueue.Operation("launchPurchaseFlow",
+                AsyncOperationQueue.PRIORITY_USER, false) {
+            @Override
+            void start() {
+                final AsyncOperationQueue.Operation op = this;
+                // The flow needs the UI thread; if we had to wait for our turn, we may be
+                // getting started from one of the async threads.
+                if (Looper.myLooper() == handler.getLooper()) {
+                    launchPurchaseFlowInternal(op, act, sku, itemType, requestCode, listener, extraData, future);
+                }
+                else {
+                    handler.post(new Runnable() {
+                        public void run() {
+                            launchPurchaseFlowInternal(op, act, sku, itemType, requestCode, listener,
+                                                       extraData, future);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #launchPurchaseFlow(Activity, String, String, int,
+     * OnIabPurchaseFinishedListener, String)}, but returns the purchase as a future,
+     * which fails with an {@link IabException} if the purchase does. As with the other
+     * variants, the result only comes once the activity passes it to
+     * {@link #handleActivityResult}. This method MUST be called from the UI thread of
+     * the Activity.
+     */
+    public IabFuture<Purchase> launchPurchaseFlow(Activity act, String sku, String itemType,
+                                                  int requestCode, String extraData) {
+        final IabFuture<Purchase> future = new IabFuture<Purchase>();
+        final Handler handler = new Handler();
+        launchPurchaseFlow(act, sku, itemType, requestCode, new OnIabPurchaseFinishedListener() {
+            public void onIabPurchaseFinished(IabResult result, Purchase info) {
+                if (result.isSuccess()) {
+                    future.complete(info);
+                }
+                else {
+                    future.fail(new IabException(result));
+                }
+            }
+        }, extraData, future);
+        future.addAbortListener(new Runnable() {
+            public void run() {
+                // The purchase flow state belongs to the UI thread.
+                handler.post(new Runnable() {
+                    public void run() {
+                        abandonPurchaseFlow(future);
+                    }
+                });
+            }
+        });
+        return future;
+    }
+
+    // Stops waiting for the activity result of the purchase flow reporting to future,
+    // if that is the flow in progress. A purchase the user still completes afterwards
+    // is picked up by the next inventory query.
+    void abandonPurchaseFlow(IabFuture<?> future) {
+        if (mPurchaseOperation == null || mPurchaseFuture != future) return;
+        logDebug("Abandoning purchase flow.");
+        mPurchaseListener = null;
+        endPurchaseOperation();
+    }
+
+    void launchPurchaseFlowInternal(AsyncOperationQueue.Operation op, Activity act, String sku,
+                                    String itemType, int requestCode,
+                                    OnIabPurchaseFinishedListener listener, String extraData,
+                                    IabFuture<?> future) {
         IabResult result;
 
+        if (future != null && future.isDone()) {
+            // Cancelled while waiting for its turn.
+            endAsync(op);
+            return;
+        }
+
         if (itemType.equals(ITEM_TYPE_SUBS) && !mSubscriptionsSupported) {
             IabResult r = new IabResult(IABHELPER_SUBSCRIPTIONS_NOT_AVAILABLE,
                     "Subscriptions are not available.");
+            endAsync(op);
             if (listener != null) listener.onIabPurchaseFinished(r, null);
             return;
         }
@@ -371,6 +677,7 @@ public class IabHelper {
                 logError("Unable to buy item, Error response: " + getResponseDesc(response));
 
                 result = new IabResult(response, "Unable to buy item");
+                endAsync(op);
                 if (listener != null) listener.onIabPurchaseFinished(result, null);
                 return;
             }
@@ -380,6 +687,8 @@ public class IabHelper {
             mRequestCode = requestCode;
             mPurchaseListener = listener;
             mPurchasingItemType = itemType;
+            mPurchaseOperation = op;
+            mPurchaseFuture = future;
             act.startIntentSenderForResult(pendingIntent.getIntentSender(),
                                            requestCode, new Intent(),
                                            Integer.valueOf(0), Integer.valueOf(0),
@@ -390,6 +699,7 @@ public class IabHelper {
             e.printStackTrace();
 
             result = new IabResult(IABHELPER_SEND_INTENT_FAILED, "Failed to send intent.");
+            endPurchaseOperation();
             if (listener != null) listener.onIabPurchaseFinished(result, null);
         }
         catch (RemoteException e) {
@@ -397,6 +707,7 @@ public class IabHelper {
             e.printStackTrace();
 
             result = new IabResult(IABHELPER_REMOTE_EXCEPTION, "Remote exception while starting purchase flow");
+            endAsync(op);
             if (listener != null) listener.onIabPurchaseFinished(result, null);
         }
     }
@@ -407,6 +718,10 @@ public class IabHelper {
      * Activity's {@link android.app.Activity@onActivityResult} method. This method
      * MUST be called from the UI thread of the Activity.
      *
+     * When the purchase flow returned a purchase, its signature is verified on a
+     * background thread, and the purchase listener is called back on the UI thread
+     * once that is done, after this method has returned.
+     *
      * @param requestCode The requestCode as you received it.
      * @param resultCode The resultCode as you received it.
      * @param data The data (Intent) as you received it.
@@ -421,7 +736,7 @@ public class IabHelper {
         checkSetupDone("handleActivityResult");
 
         // end of async purchase operation
-        flagEndAsync();
+        endPurchaseOperation();
 
         if (data == null) {
             logError("Null data in IAB activity result.");
@@ -449,31 +764,9 @@ public class IabHelper {
                 return true;
             }
 
-            Purchase purchase = null;
-            try {
-                purchase = new Purchase(mPurchasingItemType, purchaseData, dataSignature);
-                String sku = purchase.getSku();
-
-                // Verify signature
-                if (!Security.verifyPurchase(mSignatureBase64, purchaseData, dataSignature)) {
-                    logError("Purchase signature verification FAILED for sku " + sku);
-                    result = new IabResult(IABHELPER_VERIFICATION_FAILED, "Signature verification failed for sku " + sku);
-                    if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, purchase);
-                    return true;
-                }
-                logDebug("Purchase signature successfully verified.");
-            }
-            catch (JSONException e) {
-                logError("Failed to parse purchase data.");
-                e.printStackTrace();
-                result = new IabResult(IABHELPER_BAD_RESPONSE, "Failed to parse purchase data.");
-                if (mPurchaseListener != null) mPurchaseListener.onIabPurchaseFinished(result, null);
-                return true;
-            }
-
-            if (mPurchaseListener != null) {
-                mPurchaseListener.onIabPurchaseFinished(new IabResult(BILLING_RESPONSE_RESULT_OK, "Success"), purchase);
-            }
+            // Parsing and verifying the purchase is too slow for the UI thread; do it in
+            // the background and only come back here to deliver the result.
+            verifyPurchaseAsync(mPurchasingItemType, purchaseData, dataSignature, mPurchaseListener);
         }
         else if (resultCode == Activity.RESULT_OK) {
             // result code was OK, but in-app billing response was not OK.
@@ -497,6 +790,33 @@ public class IabHelper {
         return true;
     }
 
+    // Parses and verifies a purchase returned by the purchase flow on the verification
+    // pool, then reports the outcome to the listener on the calling (UI) thread.
+    void verifyPurchaseAsync(String itemType, String purchaseData, String dataSignature,
+                             final OnIabPurchaseFinishedListener listener) {
+        PurchaseVerification.verifyAsync(mSignatureBase64, itemType, purchaseData, dataSignature,
+                IabExecutors.verificationPool(), IabFuture.handlerExecutor(new Handler()),
+                new PurchaseVerification.Listener() {
+                    public void onVerified(Purchase purchase) {
+                        mInventoryCache.addPurchase(purchase);
+                        saveInventorySnapshot();
+                    }
+
+                    public void onFinished(IabResult result, Purchase purchase) {
+                        if (result.isSuccess()) {
+                            logDebug("Purchase signature successfully verified.");
+                        }
+                        else if (purchase != null) {
+                            logError("Purchase signature verification FAILED for sku " + purchase.getSku());
+                        }
+                        else {
+                            logError("Failed to parse purchase data.");
+                        }
+                        if (listener != null) listener.onIabPurchaseFinished(result, purchase);
+                    }
+                });
+    }
+
     public Inventory queryInventory(boolean querySkuDetails, List<String> moreSkus) throws IabException {
         return queryInventory(querySkuDetails, moreSkus, null);
     }
@@ -516,37 +836,64 @@ public class IabHelper {
      */
     public Inventory queryInventory(boolean querySkuDetails, List<String> moreItemSkus,
                                         List<String> moreSubsSkus) throws IabException {
+        return queryInventory(querySkuDetails, moreItemSkus, moreSubsSkus, null);
+    }
+
+    // Queries the inventory on behalf of the asynchronous operation reporting to
+    // operation, if not null. If that is cancelled or times out, the query stops at the
+    // next step and nothing it found is published.
+    Inventory queryInventory(boolean querySkuDetails, List<String> moreItemSkus,
+                             List<String> moreSubsSkus, final IabFuture<?> operation) throws IabException {
         checkSetupDone("queryInventory");
+        long cacheVersion = mInventoryCache.beginQuery();
+        // Purchases already in the last inventory are reused as they are, without
+        // being parsed and verified again.
+        final Inventory previous = mInventoryCache.peek();
         try {
-            Inventory inv = new Inventory();
-            int r = queryPurchases(inv, ITEM_TYPE_INAPP);
-            if (r != BILLING_RESPONSE_RESULT_OK) {
-                throw new IabException(r, "Error refreshing inventory (querying owned items).");
-            }
-
-            if (querySkuDetails) {
-                r = querySkuDetails(ITEM_TYPE_INAPP, inv, moreItemSkus);
-                if (r != BILLING_RESPONSE_RESULT_OK) {
-                    throw new IabException(r, "Error refreshing inventory (querying prices of items).");
-                }
+            final Inventory.Builder inv = new Inventory.Builder();
+            if (!mSubscriptionsSupported) {
+                queryItems(ITEM_TYPE_INAPP, inv, querySkuDetails, moreItemSkus, previous, operation);
             }
-
-            // if subscriptions are supported, then also query for subscriptions
-            if (mSubscriptionsSupported) {
-                r = queryPurchases(inv, ITEM_TYPE_SUBS);
-                if (r != BILLING_RESPONSE_RESULT_OK) {
-                    throw new IabException(r, "Error refreshing inventory (querying owned subscriptions).");
-                }
-
-                if (querySkuDetails) {
-                    r = querySkuDetails(ITEM_TYPE_SUBS, inv, moreItemSkus);
-                    if (r != BILLING_RESPONSE_RESULT_OK) {
-                        throw new IabException(r, "Error refreshing inventory (querying prices of subscriptions).");
+            else {
+                // if subscriptions are supported, then also query for subscriptions;
+                // the two are independent, so query them in parallel
+                final Inventory.Builder subsInv = new Inventory.Builder();
+                final boolean withDetails = querySkuDetails;
+                final List<String> skus = moreItemSkus;
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(2);
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws IabException, RemoteException, JSONException {
+                        queryItems(ITEM_TYPE_INAPP, inv, withDetails, skus, previous, operation);
+                        return null;
+                    }
+                });
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws IabException, RemoteException, JSONException {
+                        queryItems(ITEM_TYPE_SUBS, subsInv, withDetails, skus, previous, operation);
+                        return null;
                     }
+                });
+                try {
+                    IabExecutors.invokeAll(IabExecutors.billingPool(), tasks);
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = IabExecutors.rethrowUnchecked(e);
+                    if (cause instanceof IabException) throw (IabException) cause;
+                    if (cause instanceof RemoteException) throw (RemoteException) cause;
+                    if (cause instanceof JSONException) throw (JSONException) cause;
+                    throw new RuntimeException(cause);
                 }
+                inv.addAll(subsInv);
             }
 
-            return inv;
+            // An abandoned query's caller has moved on; don't overwrite what a newer query
+            // may have published since.
+            checkNotAbandoned(operation);
+            Inventory result = inv.build();
+            mInventoryCache.put(result, querySkuDetails, moreItemSkus, cacheVersion);
+            saveInventorySnapshot();
+            notifyInventoryChanged(previous, result);
+            return result;
         }
         catch (RemoteException e) {
             throw new IabException(IABHELPER_REMOTE_EXCEPTION, "Remote exception while refreshing inventory.", e);
@@ -556,6 +903,102 @@ public class IabHelper {
         }
     }
 
+    // Queries the owned items of one type, and if asked to, their details and those of
+    // moreSkus, into inv. Purchases unchanged since previous, if not null, are reused.
+    void queryItems(String itemType, Inventory.Builder inv, boolean querySkuDetails, List<String> moreSkus,
+                    Inventory previous, IabFuture<?> operation)
+                    throws IabException, RemoteException, JSONException {
+        boolean subs = ITEM_TYPE_SUBS.equals(itemType);
+        int r = queryPurchases(inv, itemType, knownPurchases(previous, itemType), operation);
+        if (r != BILLING_RESPONSE_RESULT_OK) {
+            throw new IabException(r, subs ? "Error refreshing inventory (querying owned subscriptions)."
+                                           : "Error refreshing inventory (querying owned items).");
+        }
+
+        if (querySkuDetails) {
+            checkNotAbandoned(operation);
+            r = querySkuDetails(itemType, inv, moreSkus);
+            if (r != BILLING_RESPONSE_RESULT_OK) {
+                throw new IabException(r, subs ? "Error refreshing inventory (querying prices of subscriptions)."
+                                               : "Error refreshing inventory (querying prices of items).");
+            }
+        }
+    }
+
+    // Returns whether the asynchronous operation reporting to operation, if not null,
+    // was cancelled or timed out.
+    static boolean isAbandoned(IabFuture<?> operation) {
+        return operation != null && operation.isAborted();
+    }
+
+    // Throws if the asynchronous operation reporting to operation, if not null, was
+    // cancelled or timed out.
+    static void checkNotAbandoned(IabFuture<?> operation) throws IabException {
+        if (isAbandoned(operation)) {
+            throw new IabException(IABHELPER_CANCELLED, "Operation abandoned.");
+        }
+    }
+
+    /**
+     * Returns the verified purchases of the given type in an inventory, by signature.
+     * Purchases from a snapshot that haven't been verified yet are left out.
+     */
+    static Map<String,Purchase> knownPurchases(Inventory inv, String itemType) {
+        if (inv == null) return null;
+        Map<String,Purchase> purchases = inv.mState.get().mPurchasesByType.get(itemType);
+        if (purchases == null) return null;
+        Map<String,Purchase> known = new HashMap<String,Purchase>(purchases.size() * 2);
+        for (Purchase p : purchases.values()) {
+            if (p.mPendingVerificationKey == null) known.put(p.getSignature(), p);
+        }
+        return known;
+    }
+
+    // Tells the inventory changed listener, if any, how current differs from previous.
+    void notifyInventoryChanged(Inventory previous, Inventory current) {
+        final OnInventoryChangedListener listener = mInventoryChangedListener;
+        if (listener == null) return;
+
+        Map<String,Purchase> before = previous == null ? new HashMap<String,Purchase>()
+                                                       : previous.mState.get().mPurchaseMap;
+        Map<String,Purchase> after = current.mState.get().mPurchaseMap;
+        final List<Purchase> added = new ArrayList<Purchase>();
+        final List<Purchase> removed = new ArrayList<Purchase>();
+        // Unchanged purchases were reused, so comparing references is enough.
+        for (Purchase p : after.values()) {
+            if (before.get(p.getSku()) != p) added.add(p);
+        }
+        for (Purchase p : before.values()) {
+            if (after.get(p.getSku()) != p) removed.add(p);
+        }
+        if (added.isEmpty() && removed.isEmpty()) return;
+
+        logDebug("Inventory changed: " + added.size() + " added, " + removed.size() + " removed.");
+        final Inventory inv = current;
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            public void run() {
+                listener.onInventoryChanged(inv, added, removed);
+            }
+        });
+    }
+
+    /**
+     * Listener that is told which purchases changed between inventory queries.
+     * See {@link #setOnInventoryChangedListener}.
+     */
+    public interface OnInventoryChangedListener {
+        /**
+         * Called on the main thread when an inventory query finds purchases that
+         * weren't in the previous inventory, or misses some that were. A purchase
+         * whose data changed is both removed (old version) and added (new one).
+         *
+         * @param inv The newly queried inventory.
+         * @param added The purchases that are new in inv.
+         * @param removed The purchases of the previous inventory that are gone or replaced.
+         */
+        public void onInventoryChanged(Inventory inv, List<Purchase> added, List<Purchase> removed);
+    }
+
     /**
      * Listener that notifies when an inventory query operation completes.
      */
@@ -576,6 +1019,13 @@ public class IabHelper {
      * and call back the specified listener upon completion. This method is safe to
      * call from a UI thread.
      *
+     * If an inventory query that asks for at least as much (SKU details, if wanted,
+     * and all of moreSkus) is already queued or running, the listener is attached to
+     * it instead of starting another round trip to the billing service, and receives
+     * the same result. If the inventory cache is enabled (see
+     * {@link #setInventoryCacheTtl}) and holds a matching inventory, that is returned
+     * instead.
+     *
      * @param querySkuDetails as in {@link #queryInventory}
      * @param moreSkus as in {@link #queryInventory}
      * @param listener The listener to notify when the refresh operation completes.
@@ -584,30 +1034,158 @@ public class IabHelper {
                                final List<String> moreSkus,
                                final QueryInventoryFinishedListener listener) {
         final Handler handler = new Handler();
+        queryInventoryAsync(querySkuDetails, moreSkus).addCallback(new IabFuture.Callback<Inventory>() {
+            public void onSuccess(Inventory inv) {
+                listener.onQueryInventoryFinished(new IabResult(BILLING_RESPONSE_RESULT_OK,
+                        "Inventory refresh successful."), inv);
+            }
+
+            public void onFailure(IabException e) {
+                listener.onQueryInventoryFinished(e.getResult(), null);
+            }
+        }, IabFuture.handlerExecutor(handler));
+    }
+
+    /**
+     * Same as {@link #queryInventoryAsync(boolean, List, QueryInventoryFinishedListener)},
+     * but returns the inventory as a future rather than calling a listener, so that it
+     * can be called from any thread and chained with other operations. The future fails
+     * with an {@link IabException} if the query does.
+     */
+    public IabFuture<Inventory> queryInventoryAsync(boolean querySkuDetails, List<String> moreSkus) {
         checkSetupDone("queryInventory");
-        flagStartAsync("refresh inventory");
-        (new Thread(new Runnable() {
-            public void run() {
-                IabResult result = new IabResult(BILLING_RESPONSE_RESULT_OK, "Inventory refresh successful.");
-                Inventory inv = null;
-                try {
-                    inv = queryInventory(querySkuDetails, moreSkus);
+
+        if (mInventoryCacheTtl > 0) {
+            Inventory cached = mInventoryCache.get(querySkuDetails, moreSkus);
+            if (cached != null) {
+                if (mInventoryCache.getAge() > mInventoryCacheTtl) {
+                    logDebug("Serving stale inventory from cache; refreshing in the background.");
+                    startInventoryQuery(querySkuDetails, moreSkus);
+                }
+                else {
+                    logDebug("Serving inventory from cache.");
+                }
+                return IabFuture.completed(cached);
+            }
+        }
+
+        return startInventoryQuery(querySkuDetails, moreSkus);
+    }
+
+    // Starts an inventory query, or joins one in progress that covers it, and returns
+    // a future for the caller.
+    IabFuture<Inventory> startInventoryQuery(boolean querySkuDetails, List<String> moreSkus) {
+        InventoryQuery query;
+        IabFuture<Inventory> future;
+        synchronized (mInventoryQueries) {
+            for (InventoryQuery pending : mInventoryQueries) {
+                if (pending.covers(querySkuDetails, moreSkus)) {
+                    logDebug("Joining inventory query already in progress.");
+                    return pending.join();
                 }
-                catch (IabException ex) {
-                    result = ex.getResult();
+            }
+            query = new InventoryQuery(querySkuDetails, moreSkus);
+            future = query.join();
+            mInventoryQueries.add(query);
+        }
+        startAsync(query);
+        return future;
+    }
+
+    // Returns whether the result of a query for SKU details (if haveSkuDetails) and
+    // haveSkus answers a query for SKU details (if wantSkuDetails) and wantSkus.
+    static boolean queryCovers(boolean haveSkuDetails, List<String> haveSkus,
+                               boolean wantSkuDetails, List<String> wantSkus) {
+        if (!wantSkuDetails) return true;
+        if (!haveSkuDetails) return false;
+        if (wantSkus == null || wantSkus.isEmpty()) return true;
+        return haveSkus != null && haveSkus.containsAll(wantSkus);
+    }
+
+    /**
+     * An inventory query shared by every queryInventoryAsync caller that it covers.
+     * Each caller gets a future of its own, so that one caller giving up doesn't affect
+     * the others; the query itself is only stopped once none is left waiting. Callers
+     * join and leave holding the lock on mInventoryQueries, and stop joining once the
+     * query is removed from there, just before its future completes.
+     */
+    class InventoryQuery extends BackgroundOperation<Inventory> {
+        final boolean mQuerySkuDetails;
+        final List<String> mMoreSkus;
+        int mWaiters;
+
+        InventoryQuery(boolean querySkuDetails, List<String> moreSkus) {
+            super("refresh inventory", AsyncOperationQueue.PRIORITY_BACKGROUND, true);
+            mQuerySkuDetails = querySkuDetails;
+            mMoreSkus = moreSkus == null ? null : new ArrayList<String>(moreSkus);
+            mFuture.addAbortListener(new Runnable() {
+                public void run() {
+                    finish();
                 }
+            });
+        }
 
-                flagEndAsync();
+        // Returns whether this query's result answers a query with the given arguments.
+        boolean covers(boolean querySkuDetails, List<String> moreSkus) {
+            return queryCovers(mQuerySkuDetails, mMoreSkus, querySkuDetails, moreSkus);
+        }
 
-                final IabResult result_f = result;
-                final Inventory inv_f = inv;
-                handler.post(new Runnable() {
-                    public void run() {
-                        listener.onQueryInventoryFinished(result_f, inv_f);
-                    }
-                });
+        // Returns a future for one more caller. Called holding the lock on mInventoryQueries.
+        IabFuture<Inventory> join() {
+            final IabFuture<Inventory> caller = new IabFuture<Inventory>();
+            mWaiters++;
+            mFuture.addCallback(new IabFuture.Callback<Inventory>() {
+                public void onSuccess(Inventory inv) {
+                    caller.complete(inv);
+                }
+
+                public void onFailure(IabException e) {
+                    caller.fail(e);
+                }
+            }, IabFuture.directExecutor());
+            caller.addAbortListener(new Runnable() {
+                public void run() {
+                    leave();
+                }
+            });
+            return caller;
+        }
+
+        // Called when a caller gives up; stops the query if it was the last one waiting.
+        void leave() {
+            synchronized (mInventoryQueries) {
+                if (--mWaiters > 0) return;
             }
-        })).start();
+            mFuture.cancel(false);
+        }
+
+        @Override
+        void run() {
+            Inventory inv;
+            try {
+                inv = queryInventory(mQuerySkuDetails, mMoreSkus, null, mFuture);
+            }
+            catch (IabException ex) {
+                finish();
+                mFuture.fail(ex);
+                return;
+            }
+            finish();
+            mFuture.complete(inv);
+        }
+
+        @Override
+        void fail(IabResult result) {
+            finish();
+            super.fail(result);
+        }
+
+        void finish() {
+            synchronized (mInventoryQueries) {
+                // From here on, new callers start a new query.
+                mInventoryQueries.remove(this);
+            }
+        }
     }
 
     public void queryInventoryAsync(QueryInventoryFinishedListener listener) {
@@ -649,6 +1227,8 @@ public class IabHelper {
             int response = mService.consumePurchase(3, mContext.getPackageName(), token);
             if (response == BILLING_RESPONSE_RESULT_OK) {
                logDebug("Successfully consumed sku: " + sku);
+               mInventoryCache.erasePurchase(sku);
+               saveInventorySnapshot();
             }
             else {
                logDebug("Error consuming consuming sku " + sku + ". " + getResponseDesc(response));
@@ -687,6 +1267,24 @@ public class IabHelper {
         public void onConsumeMultiFinished(List<Purchase> purchases, List<IabResult> results);
     }
 
+    /**
+     * Callback for a multi-item consumption that also wants to hear about each item
+     * as soon as it is consumed. Pass one to
+     * {@link #consumeAsync(List, OnConsumeMultiFinishedListener)}; it is told about
+     * each item, in the order they complete, and then about all of them as usual.
+     */
+    public interface OnConsumeProgressListener extends OnConsumeMultiFinishedListener {
+        /**
+         * Called to notify that the consumption of one of the items has finished.
+         *
+         * @param purchase The purchase that was (or was to be) consumed.
+         * @param result The result of its consumption.
+         * @param completed The number of items finished so far, including this one.
+         * @param total The number of items in the batch.
+         */
+        public void onConsumeProgress(Purchase purchase, IabResult result, int completed, int total);
+    }
+
     /**
      * Asynchronous wrapper to item consumption. Works like {@link #consume}, but
      * performs the consumption in the background and notifies completion through
@@ -695,21 +1293,76 @@ public class IabHelper {
      * @param purchase The purchase to be consumed.
      * @param listener The listener to notify when the consumption operation finishes.
      */
-    public void consumeAsync(Purchase purchase, OnConsumeFinishedListener listener) {
+    public void consumeAsync(final Purchase purchase, final OnConsumeFinishedListener listener) {
+        checkSetupDone("consume");
+        List<Purchase> purchases = new ArrayList<Purchase>();
+        purchases.add(purchase);
+        Executor executor = IabFuture.handlerExecutor(new Handler());
+        consumeAsyncInternal(purchases, null, executor).addCallback(
+                new IabFuture.Callback<List<IabResult>>() {
+                    public void onSuccess(List<IabResult> results) {
+                        if (listener != null) listener.onConsumeFinished(purchase, results.get(0));
+                    }
+
+                    public void onFailure(IabException e) {
+                        if (listener != null) listener.onConsumeFinished(purchase, e.getResult());
+                    }
+                }, executor);
+    }
+
+    /**
+     * Same as {@link #consumeAsync(Purchase, OnConsumeFinishedListener)}, but returns
+     * the consumed purchase as a future, which fails with an {@link IabException} if
+     * the consume does. It can be called from any thread.
+     */
+    public IabFuture<Purchase> consumeAsync(final Purchase purchase) {
         checkSetupDone("consume");
         List<Purchase> purchases = new ArrayList<Purchase>();
         purchases.add(purchase);
-        consumeAsyncInternal(purchases, listener, null);
+        return consumeAsyncInternal(purchases, null, null).then(
+                new IabFuture.Function<List<IabResult>, Purchase>() {
+                    public Purchase apply(List<IabResult> results) throws IabException {
+                        if (results.get(0).isFailure()) throw new IabException(results.get(0));
+                        return purchase;
+                    }
+                }, IabFuture.directExecutor());
     }
 
     /**
-     * Same as {@link consumeAsync}, but for multiple items at once.
+     * Same as {@link consumeAsync}, but for multiple items at once. Up to
+     * {@link #setConsumeConcurrency} items are consumed in parallel. If the listener is
+     * an {@link OnConsumeProgressListener}, it is also told about each item as it finishes.
      * @param purchases The list of PurchaseInfo objects representing the purchases to consume.
      * @param listener The listener to notify when the consumption operation finishes.
      */
-    public void consumeAsync(List<Purchase> purchases, OnConsumeMultiFinishedListener listener) {
+    public void consumeAsync(final List<Purchase> purchases, final OnConsumeMultiFinishedListener listener) {
+        checkSetupDone("consume");
+        Executor executor = IabFuture.handlerExecutor(new Handler());
+        OnConsumeProgressListener progress = listener instanceof OnConsumeProgressListener
+                ? (OnConsumeProgressListener) listener : null;
+        consumeAsyncInternal(purchases, progress, executor).addCallback(
+                new IabFuture.Callback<List<IabResult>>() {
+                    public void onSuccess(List<IabResult> results) {
+                        if (listener != null) listener.onConsumeMultiFinished(purchases, results);
+                    }
+
+                    public void onFailure(IabException e) {
+                        List<IabResult> results = new ArrayList<IabResult>();
+                        for (int i = 0; i < purchases.size(); ++i) results.add(e.getResult());
+                        if (listener != null) listener.onConsumeMultiFinished(purchases, results);
+                    }
+                }, executor);
+    }
+
+    /**
+     * Same as {@link #consumeAsync(List, OnConsumeMultiFinishedListener)}, but returns
+     * the results, in the order of purchases, as a future. The future only fails if the
+     * consumes couldn't be started at all; otherwise each item's outcome is in its
+     * result. It can be called from any thread.
+     */
+    public IabFuture<List<IabResult>> consumeAsync(List<Purchase> purchases) {
         checkSetupDone("consume");
-        consumeAsyncInternal(purchases, null, listener);
+        return consumeAsyncInternal(purchases, null, null);
     }
 
     /**
@@ -733,7 +1386,9 @@ public class IabHelper {
                                    "-1007:Missing token/" +
                                    "-1008:Unknown error/" +
                                    "-1009:Subscriptions not available/" +
-                                   "-1010:Invalid consumption attempt").split("/");
+                                   "-1010:Invalid consumption attempt/" +
+                                   "-1011:Operation timed out/" +
+                                   "-1012:Operation cancelled").split("/");
 
         if (code <= IABHELPER_ERROR_BASE) {
             int index = IABHELPER_ERROR_BASE - code;
@@ -787,96 +1442,397 @@ public class IabHelper {
         }
     }
 
-    void flagStartAsync(String operation) {
-        if (mAsyncInProgress) throw new IllegalStateException("Can't start async operation (" +
-                operation + ") because another async operation(" + mAsyncOperation + ") is in progress.");
-        mAsyncOperation = operation;
-        mAsyncInProgress = true;
-        logDebug("Starting async operation: " + operation);
+    // Queues an asynchronous operation; it starts once the operations ahead of it allow.
+    void startAsync(AsyncOperationQueue.Operation op) {
+        logDebug("Queuing async operation: " + op);
+        mAsyncQueue.submit(op);
     }
 
-    void flagEndAsync() {
-        logDebug("Ending async operation: " + mAsyncOperation);
-        mAsyncOperation = "";
-        mAsyncInProgress = false;
+    void endAsync(AsyncOperationQueue.Operation op) {
+        logDebug("Ending async operation: " + op);
+        mAsyncQueue.finish(op);
     }
 
+    // Ends the purchase flow operation, if one is waiting for its activity result.
+    void endPurchaseOperation() {
+        AsyncOperationQueue.Operation op = mPurchaseOperation;
+        mPurchaseOperation = null;
+        mPurchaseFuture = null;
+        if (op != null) endAsync(op);
+    }
 
-    int queryPurchases(Inventory inv, String itemType) throws JSONException, RemoteException {
+    /**
+     * An asynchronous operation whose work runs on the shared async executor, and whose
+     * outcome goes to {@link #mFuture}. It is finished as soon as {@link #run} returns,
+     * or as soon as the future is cancelled or times out, whichever comes first; the
+     * helper's async timeout counts from when the operation is queued.
+     */
+    abstract class BackgroundOperation<T> extends AsyncOperationQueue.Operation {
+        // Values of mRunState
+        static final int QUEUED = 0;
+        static final int RUNNING = 1;
+        static final int FINISHED = 2;
+
+        final IabFuture<T> mFuture = new IabFuture<T>();
+        // Moves to FINISHED once, when the queue is told the operation is done
+        final AtomicInteger mRunState = new AtomicInteger(QUEUED);
+
+        BackgroundOperation(String name, int priority, boolean readOnly) {
+            super(name, priority, readOnly);
+            mFuture.addAbortListener(new Runnable() {
+                public void run() {
+                    logDebug("Abandoning async operation: " + mName);
+                    end();
+                }
+            });
+            mFuture.withTimeout(mAsyncTimeout);
+        }
+
+        /**
+         * Does the work, on a background thread, and completes the future. It should
+         * publish nothing once the future is done.
+         */
+        abstract void run();
+
+        /** Reports a failure to start the operation. */
+        void fail(IabResult result) {
+            mFuture.fail(new IabException(result));
+        }
+
+        @Override
+        void start() {
+            mRunState.set(RUNNING);
+            if (mFuture.isDone()) {
+                // Cancelled or timed out while waiting for its turn.
+                end();
+                return;
+            }
+            logDebug("Starting async operation: " + mName);
+            boolean scheduled = IabExecutors.executeAsync(new Runnable() {
+                public void run() {
+                    try {
+                        if (!mFuture.isDone()) BackgroundOperation.this.run();
+                    }
+                    finally {
+                        end();
+                    }
+                }
+            });
+            if (!scheduled) {
+                logError("Async executor rejected operation: " + mName);
+                end();
+                fail(new IabResult(IABHELPER_UNKNOWN_ERROR, "Too many asynchronous operations pending."));
+            }
+        }
+
+        // Tells the queue the operation is done, if it was started and hasn't already.
+        void end() {
+            if (mRunState.compareAndSet(RUNNING, FINISHED)) endAsync(this);
+        }
+    }
+
+    // Queries the owned items of one type into inv. known holds purchases from an
+    // earlier query by signature, which are reused if they come back unchanged; it
+    // may be null. Once operation, if not null, is abandoned, no more pages are
+    // requested or verified.
+    //
+    // Large inventories come in pages. Fetching them is a pipeline: as soon as a page
+    // arrives, its verification is handed to the verification pool and the next page is
+    // requested, so the service calls overlap with verifying the pages before them. At
+    // most MAX_PAGES_IN_FLIGHT pages wait to be verified; verified pages are added to
+    // inv in the order they came.
+    int queryPurchases(Inventory.Builder inv, String itemType, final Map<String,Purchase> known,
+                       final IabFuture<?> operation)
+                                throws IabException, JSONException, RemoteException {
         // Query purchases
         logDebug("Querying owned items, item type: " + itemType);
         logDebug("Package name: " + mContext.getPackageName());
         boolean verificationFailed = false;
         String continueToken = null;
+        BlockingQueue<Future<PurchasePage>> pending =
+                new ArrayBlockingQueue<Future<PurchasePage>>(MAX_PAGES_IN_FLIGHT);
 
-        do {
-            logDebug("Calling getPurchases with continuation token: " + continueToken);
-            Bundle ownedItems = mService.getPurchases(3, mContext.getPackageName(),
-                    itemType, continueToken);
+        try {
+            do {
+                checkNotAbandoned(operation);
+                logDebug("Calling getPurchases with continuation token: " + continueToken);
+                Bundle ownedItems = mService.getPurchases(3, mContext.getPackageName(),
+                        itemType, continueToken);
+
+                int response = getResponseCodeFromBundle(ownedItems);
+                logDebug("Owned items response: " + String.valueOf(response));
+                if (response != BILLING_RESPONSE_RESULT_OK) {
+                    logDebug("getPurchases() failed: " + getResponseDesc(response));
+                    return response;
+                }
+                if (!ownedItems.containsKey(RESPONSE_INAPP_ITEM_LIST)
+                        || !ownedItems.containsKey(RESPONSE_INAPP_PURCHASE_DATA_LIST)
+                        || !ownedItems.containsKey(RESPONSE_INAPP_SIGNATURE_LIST)) {
+                    logError("Bundle returned from getPurchases() doesn't contain required fields.");
+                    return IABHELPER_BAD_RESPONSE;
+                }
 
-            int response = getResponseCodeFromBundle(ownedItems);
-            logDebug("Owned items response: " + String.valueOf(response));
-            if (response != BILLING_RESPONSE_RESULT_OK) {
-                logDebug("getPurchases() failed: " + getResponseDesc(response));
-                return response;
-            }
-            if (!ownedItems.containsKey(RESPONSE_INAPP_ITEM_LIST)
-                    || !ownedItems.containsKey(RESPONSE_INAPP_PURCHASE_DATA_LIST)
-                    || !ownedItems.containsKey(RESPONSE_INAPP_SIGNATURE_LIST)) {
-                logError("Bundle returned from getPurchases() doesn't contain required fields.");
-                return IABHELPER_BAD_RESPONSE;
-            }
-
-            ArrayList<String> ownedSkus = ownedItems.getStringArrayList(
-                        RESPONSE_INAPP_ITEM_LIST);
-            ArrayList<String> purchaseDataList = ownedItems.getStringArrayList(
-                        RESPONSE_INAPP_PURCHASE_DATA_LIST);
-            ArrayList<String> signatureList = ownedItems.getStringArrayList(
-                        RESPONSE_INAPP_SIGNATURE_LIST);
-
-            for (int i = 0; i < purchaseDataList.size(); ++i) {
-                String purchaseData = purchaseDataList.get(i);
-                String signature = signatureList.get(i);
-                String sku = ownedSkus.get(i);
-                if (Security.verifyPurchase(mSignatureBase64, purchaseData, signature)) {
-                    logDebug("Sku is owned: " + sku);
-                    Purchase purchase = new Purchase(itemType, purchaseData, signature);
-
-                    if (TextUtils.isEmpty(purchase.getToken())) {
-                        logWarn("BUG: empty/null token!");
-                        logDebug("Purchase data: " + purchaseData);
+                final PurchasePage page = new PurchasePage(itemType,
+                        ownedItems.getStringArrayList(RESPONSE_INAPP_ITEM_LIST),
+                        ownedItems.getStringArrayList(RESPONSE_INAPP_PURCHASE_DATA_LIST),
+                        ownedItems.getStringArrayList(RESPONSE_INAPP_SIGNATURE_LIST));
+                continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
+                logDebug("Continuation token: " + continueToken);
+
+                checkNotAbandoned(operation);
+                if (pending.isEmpty() && TextUtils.isEmpty(continueToken)) {
+                    // The only or last page, with nothing to overlap it with.
+                    page.verify(known);
+                    verificationFailed |= !addPage(inv, page);
+                    break;
+                }
+                if (pending.remainingCapacity() == 0) {
+                    verificationFailed |= !addPage(inv, pending.remove());
+                }
+                pending.add(IabExecutors.verificationPool().submit(new Callable<PurchasePage>() {
+                    public PurchasePage call() throws IabException, JSONException {
+                        checkNotAbandoned(operation);
+                        page.verify(known);
+                        return page;
                     }
+                }));
+            } while (!TextUtils.isEmpty(continueToken));
+
+            while (!pending.isEmpty()) {
+                checkNotAbandoned(operation);
+                verificationFailed |= !addPage(inv, pending.remove());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logError("Interrupted while querying owned items.");
+            return IABHELPER_UNKNOWN_ERROR;
+        }
+        finally {
+            // On an early return, an exception or abandonment, pages still being verified
+            // are dropped.
+            for (Future<PurchasePage> f : pending) f.cancel(true);
+        }
+
+        return verificationFailed ? IABHELPER_VERIFICATION_FAILED : BILLING_RESPONSE_RESULT_OK;
+    }
+
+    // One page of purchases from getPurchases(), and once verified, the purchases.
+    class PurchasePage {
+        final String mItemType;
+        final ArrayList<String> mOwnedSkus;
+        final ArrayList<String> mPurchaseDataList;
+        final ArrayList<String> mSignatureList;
+        Purchase[] mPurchases;
+
+        PurchasePage(String itemType, ArrayList<String> ownedSkus,
+                     ArrayList<String> purchaseDataList, ArrayList<String> signatureList) {
+            mItemType = itemType;
+            mOwnedSkus = ownedSkus;
+            mPurchaseDataList = purchaseDataList;
+            mSignatureList = signatureList;
+        }
+
+        void verify(Map<String,Purchase> known) throws JSONException {
+            mPurchases = verifyPurchases(mItemType, mPurchaseDataList, mSignatureList, known);
+        }
+    }
 
-                    // Record ownership and token
-                    inv.addPurchase(purchase);
+    // Waits for a page to be verified and adds its purchases to inv. Returns false if
+    // some signature failed verification.
+    boolean addPage(Inventory.Builder inv, Future<PurchasePage> page)
+                                throws JSONException, InterruptedException {
+        try {
+            return addPage(inv, page.get());
+        }
+        catch (ExecutionException e) {
+            Throwable cause = IabExecutors.rethrowUnchecked(e);
+            if (cause instanceof JSONException) throw (JSONException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    boolean addPage(Inventory.Builder inv, PurchasePage page) {
+        boolean verified = true;
+        Purchase[] purchases = page.mPurchases;
+        for (int i = 0; i < purchases.length; ++i) {
+            Purchase purchase = purchases[i];
+            if (purchase != null) {
+                logDebug("Sku is owned: " + page.mOwnedSkus.get(i));
+
+                if (TextUtils.isEmpty(purchase.getToken())) {
+                    logWarn("BUG: empty/null token!");
+                    logDebug("Purchase data: " + page.mPurchaseDataList.get(i));
                 }
-                else {
-                    logWarn("Purchase signature verification **FAILED**. Not adding item.");
-                    logDebug("   Purchase data: " + purchaseData);
-                    logDebug("   Signature: " + signature);
-                    verificationFailed = true;
+
+                // Record ownership and token
+                inv.addPurchase(purchase);
+            }
+            else {
+                logWarn("Purchase signature verification **FAILED**. Not adding item.");
+                logDebug("   Purchase data: " + page.mPurchaseDataList.get(i));
+                logDebug("   Signature: " + page.mSignatureList.get(i));
+                verified = false;
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * Verifies and parses one page of purchases. Purchases found in known with the
+     * same signature and data are taken from there as they are. Signature verification
+     * of the others is CPU-bound, so large pages are split into slices that run in
+     * parallel on the shared verification pool.
+     *
+     * @return the parsed purchases, in the order of the given lists; entries whose
+     *     signature failed verification are null.
+     * @throws JSONException if a verified purchase can't be parsed.
+     */
+    Purchase[] verifyPurchases(final String itemType, final List<String> purchaseDataList,
+                               final List<String> signatureList, Map<String,Purchase> known)
+                               throws JSONException {
+        final Purchase[] purchases = new Purchase[purchaseDataList.size()];
+        int unknown = purchases.length;
+        if (known != null && !known.isEmpty()) {
+            for (int i = 0; i < purchases.length; ++i) {
+                // The signature covers the data, so equal data needs no new check.
+                Purchase p = known.get(signatureList.get(i));
+                if (p != null && p.getOriginalJson().equals(purchaseDataList.get(i))) {
+                    purchases[i] = p;
+                    --unknown;
                 }
             }
+            if (unknown < purchases.length) {
+                logDebug("Reusing " + (purchases.length - unknown) + " known purchases.");
+            }
+        }
+        int slices = Math.min(IabExecutors.CPU_COUNT, unknown / MIN_PURCHASES_PER_SLICE);
+        if (slices <= 1) {
+            verifyPurchases(itemType, purchaseDataList, signatureList, purchases, 0, purchases.length);
+            return purchases;
+        }
 
-            continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
-            logDebug("Continuation token: " + continueToken);
-        } while (!TextUtils.isEmpty(continueToken));
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(slices);
+        for (int slice = 0; slice < slices; ++slice) {
+            final int from = (int) ((long) purchases.length * slice / slices);
+            final int to = (int) ((long) purchases.length * (slice + 1) / slices);
+            tasks.add(new Callable<Void>() {
+                public Void call() throws JSONException {
+                    verifyPurchases(itemType, purchaseDataList, signatureList, purchases, from, to);
+                    return null;
+                }
+            });
+        }
+        try {
+            IabExecutors.invokeAll(IabExecutors.verificationPool(), tasks);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = IabExecutors.rethrowUnchecked(e);
+            if (cause instanceof JSONException) throw (JSONException) cause;
+            throw new RuntimeException(cause);
+        }
+        return purchases;
+    }
 
-        return verificationFailed ? IABHELPER_VERIFICATION_FAILED : BILLING_RESPONSE_RESULT_OK;
+    // Verifies and parses purchases [from, to) into the same positions of purchases,
+    // skipping those already there.
+    void verifyPurchases(String itemType, List<String> purchaseDataList, List<String> signatureList,
+                         Purchase[] purchases, int from, int to) throws JSONException {
+        for (int i = from; i < to; ++i) {
+            if (purchases[i] != null) continue;
+            String purchaseData = purchaseDataList.get(i);
+            String signature = signatureList.get(i);
+            if (Security.verifyPurchase(mSignatureBase64, purchaseData, signature)) {
+                try {
+                    purchases[i] = Purchase.parse(itemType, purchaseData, signature);
+                }
+                catch (ParseException e) {
+                    throw new JSONException(e.getMessage());
+                }
+            }
+        }
     }
 
-    int querySkuDetails(String itemType, Inventory inv, List<String> moreSkus)
+    /**
+     * Queries the details of the owned SKUs of the given type and of moreSkus, and
+     * adds them to the inventory.
+     *
+     * The service answers at most {@link #MAX_SKUS_PER_DETAILS_REQUEST} SKUs per call,
+     * so the SKUs are split into chunks of that size, which are queried in parallel
+     * on the shared billing pool and added to the inventory in the order of the SKUs.
+     *
+     * @return BILLING_RESPONSE_RESULT_OK, or the response of the first chunk that
+     *     failed.
+     */
+    int querySkuDetails(final String itemType, Inventory.Builder inv, List<String> moreSkus)
                                 throws RemoteException, JSONException {
         logDebug("Querying SKU details.");
-        ArrayList<String> skuList = new ArrayList<String>();
-        skuList.addAll(inv.getAllOwnedSkus(itemType));
-        if (moreSkus != null) skuList.addAll(moreSkus);
+        // A SKU that is both owned and asked for needn't take up room twice.
+        Set<String> skuSet = new LinkedHashSet<String>();
+        skuSet.addAll(inv.getOwnedSkus(itemType));
+        if (moreSkus != null) skuSet.addAll(moreSkus);
+        ArrayList<String> skuList = new ArrayList<String>(skuSet);
 
         if (skuList.size() == 0) {
             logDebug("queryPrices: nothing to do because there are no SKUs.");
             return BILLING_RESPONSE_RESULT_OK;
         }
 
+        List<SkuDetailsChunk> chunks;
+        if (skuList.size() <= MAX_SKUS_PER_DETAILS_REQUEST) {
+            chunks = new ArrayList<SkuDetailsChunk>(1);
+            chunks.add(querySkuDetailsChunk(itemType, skuList));
+        }
+        else {
+            List<Callable<SkuDetailsChunk>> tasks = new ArrayList<Callable<SkuDetailsChunk>>();
+            for (int from = 0; from < skuList.size(); from += MAX_SKUS_PER_DETAILS_REQUEST) {
+                int to = Math.min(from + MAX_SKUS_PER_DETAILS_REQUEST, skuList.size());
+                final ArrayList<String> chunk = new ArrayList<String>(skuList.subList(from, to));
+                tasks.add(new Callable<SkuDetailsChunk>() {
+                    public SkuDetailsChunk call() throws RemoteException, JSONException {
+                        return querySkuDetailsChunk(itemType, chunk);
+                    }
+                });
+            }
+            logDebug("Querying details of " + skuList.size() + " SKUs in " + tasks.size() + " chunks.");
+            try {
+                chunks = IabExecutors.invokeAll(IabExecutors.billingPool(), tasks);
+            }
+            catch (ExecutionException e) {
+                Throwable cause = IabExecutors.rethrowUnchecked(e);
+                if (cause instanceof RemoteException) throw (RemoteException) cause;
+                if (cause instanceof JSONException) throw (JSONException) cause;
+                throw new RuntimeException(cause);
+            }
+        }
+
+        for (SkuDetailsChunk chunk : chunks) {
+            if (chunk.mResponse != BILLING_RESPONSE_RESULT_OK) return chunk.mResponse;
+        }
+        for (SkuDetailsChunk chunk : chunks) {
+            for (SkuDetails d : chunk.mDetails) {
+                logDebug("Got sku details: " + d);
+                inv.addSkuDetails(d);
+            }
+        }
+        return BILLING_RESPONSE_RESULT_OK;
+    }
+
+    // The outcome of one getSkuDetails() call: a response code and, if it is
+    // BILLING_RESPONSE_RESULT_OK, the details it returned.
+    static class SkuDetailsChunk {
+        final int mResponse;
+        final List<SkuDetails> mDetails;
+
+        SkuDetailsChunk(int response, List<SkuDetails> details) {
+            mResponse = response;
+            mDetails = details;
+        }
+    }
+
+    // Makes a single getSkuDetails() call for at most MAX_SKUS_PER_DETAILS_REQUEST SKUs.
+    SkuDetailsChunk querySkuDetailsChunk(String itemType, ArrayList<String> skuList)
+                                throws RemoteException, JSONException {
         Bundle querySkus = new Bundle();
         querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, skuList);
         Bundle skuDetails = mService.getSkuDetails(3, mContext.getPackageName(),
@@ -886,61 +1842,180 @@ public class IabHelper {
         	int response = getResponseCodeFromBundle(skuDetails);
             if (response != BILLING_RESPONSE_RESULT_OK) {
                 logDebug("getSkuDetails() failed: " + getResponseDesc(response));
-                return response;
+                return new SkuDetailsChunk(response, null);
             }
             else {
             	logError("getSkuDetails() returned a bundle with neither an error nor a detail list.");
-                return IABHELPER_BAD_RESPONSE;
+                return new SkuDetailsChunk(IABHELPER_BAD_RESPONSE, null);
             }
         }
 
         ArrayList<String> responseList = skuDetails.getStringArrayList(
                 RESPONSE_GET_SKU_DETAILS_LIST);
 
-        for (String thisResponse : responseList) {
-            SkuDetails d = new SkuDetails(itemType, thisResponse);
-            logDebug("Got sku details: " + d);
-            inv.addSkuDetails(d);
+        List<SkuDetails> details = new ArrayList<SkuDetails>(responseList.size());
+        try {
+            for (String thisResponse : responseList) {
+                details.add(SkuDetails.parse(itemType, thisResponse));
+            }
         }
-        return BILLING_RESPONSE_RESULT_OK;
+        catch (ParseException e) {
+            throw new JSONException(e.getMessage());
+        }
+        return new SkuDetailsChunk(BILLING_RESPONSE_RESULT_OK, details);
     }
 
 
-    void consumeAsyncInternal(final List<Purchase> purchases,
-                              final OnConsumeFinishedListener singleListener,
-                              final OnConsumeMultiFinishedListener multiListener) {
-        final Handler handler = new Handler();
-        flagStartAsync("consume");
-        (new Thread(new Runnable() {
-            public void run() {
-                final List<IabResult> results = new ArrayList<IabResult>();
-                for (Purchase purchase : purchases) {
+    // Consumes the purchases in the background. Progress, if not null, is told about
+    // each item on progressExecutor.
+    IabFuture<List<IabResult>> consumeAsyncInternal(final List<Purchase> purchases,
+                                                    final OnConsumeProgressListener progress,
+                                                    final Executor progressExecutor) {
+        BackgroundOperation<List<IabResult>> op = new BackgroundOperation<List<IabResult>>(
+                "consume", AsyncOperationQueue.PRIORITY_USER, false) {
+            @Override
+            void run() {
+                mFuture.complete(Arrays.asList(consumeAll(purchases, progressExecutor, progress, mFuture)));
+            }
+        };
+        startAsync(op);
+        return op.mFuture;
+    }
+
+    /**
+     * Consumes the purchases on the billing pool, at most mConsumeConcurrency at a time.
+     * A consume that takes longer than mConsumeTimeout is given up on: its result is
+     * IABHELPER_TIMEOUT, although the call itself can't be stopped and carries on.
+     * Each result is posted to progress, if not null, as soon as it is known. Once
+     * operation, if not null, is cancelled or times out, no more consumes are started
+     * or reported, and the remaining results are IABHELPER_CANCELLED.
+     *
+     * @return the results, in the order of purchases.
+     */
+    IabResult[] consumeAll(final List<Purchase> purchases, Executor progressExecutor,
+                           OnConsumeProgressListener progress, IabFuture<?> operation) {
+        final int total = purchases.size();
+        final IabResult[] results = new IabResult[total];
+        int concurrency = Math.min(mConsumeConcurrency, total);
+        long timeout = mConsumeTimeout;
+        int done = 0;
+
+        if (concurrency <= 1 && timeout == 0 && operation == null) {
+            // Nothing to overlap, to time or to walk away from: consume right here, one
+            // after another.
+            for (int i = 0; i < total && !isAbandoned(operation); ++i) {
+                results[i] = consumeOne(purchases.get(i));
+                postConsumeProgress(progressExecutor, progress, purchases.get(i), results[i], ++done, total);
+            }
+            return fillAbandoned(results);
+        }
+
+        // Results as workers produce them; results[] only takes those that came in time.
+        final IabResult[] outcomes = new IabResult[total];
+        CompletionService<Integer> completions =
+                new ExecutorCompletionService<Integer>(IabExecutors.billingPool());
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>(total);
+        long[] deadlines = new long[total];
+        List<Integer> inFlight = new ArrayList<Integer>(concurrency);
+        int next = 0;
+        try {
+            while (done < total) {
+                if (isAbandoned(operation)) {
+                    for (Future<Integer> f : futures) f.cancel(true);
+                    break;
+                }
+                while (next < total && inFlight.size() < concurrency) {
+                    final int i = next++;
+                    futures.add(completions.submit(new Callable<Integer>() {
+                        public Integer call() {
+                            outcomes[i] = consumeOne(purchases.get(i));
+                            return i;
+                        }
+                    }));
+                    deadlines[i] = timeout > 0 ? SystemClock.elapsedRealtime() + timeout : Long.MAX_VALUE;
+                    inFlight.add(i);
+                }
+
+                // Wake up by the earliest deadline, and regularly while the operation can
+                // be abandoned, so that a hung consume doesn't keep this thread waiting.
+                long earliest = Long.MAX_VALUE;
+                for (int i : inFlight) earliest = Math.min(earliest, deadlines[i]);
+                long now = SystemClock.elapsedRealtime();
+                if (operation != null) earliest = Math.min(earliest, now + ABANDON_CHECK_INTERVAL);
+                Future<Integer> finished = earliest == Long.MAX_VALUE
+                        ? completions.take()
+                        : completions.poll(Math.max(0, earliest - now), TimeUnit.MILLISECONDS);
+
+                if (finished != null) {
+                    int i;
                     try {
-                        consume(purchase);
-                        results.add(new IabResult(BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku()));
+                        i = finished.get();
+                    }
+                    catch (CancellationException e) {
+                        continue; // one we gave up on earlier
                     }
-                    catch (IabException ex) {
-                        results.add(ex.getResult());
+                    catch (ExecutionException e) {
+                        throw new RuntimeException(IabExecutors.rethrowUnchecked(e));
                     }
+                    if (!inFlight.remove(Integer.valueOf(i))) continue;
+                    results[i] = outcomes[i];
+                    postConsumeProgress(progressExecutor, progress, purchases.get(i), results[i], ++done, total);
                 }
-
-                flagEndAsync();
-                if (singleListener != null) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            singleListener.onConsumeFinished(purchases.get(0), results.get(0));
-                        }
-                    });
+                else {
+                    now = SystemClock.elapsedRealtime();
+                    for (int k = inFlight.size() - 1; k >= 0; --k) {
+                        int i = inFlight.get(k);
+                        if (deadlines[i] > now) continue;
+                        inFlight.remove(k);
+                        futures.get(i).cancel(true);
+                        String sku = purchases.get(i).getSku();
+                        logWarn("Timed out consuming sku " + sku);
+                        results[i] = new IabResult(IABHELPER_TIMEOUT, "Timed out consuming sku " + sku);
+                        postConsumeProgress(progressExecutor, progress, purchases.get(i), results[i], ++done, total);
+                    }
                 }
-                if (multiListener != null) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            multiListener.onConsumeMultiFinished(purchases, results);
-                        }
-                    });
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<Integer> f : futures) f.cancel(true);
+            for (int i = 0; i < total; ++i) {
+                if (results[i] == null) {
+                    results[i] = new IabResult(IABHELPER_UNKNOWN_ERROR, "Interrupted while consuming.");
                 }
             }
-        })).start();
+        }
+        return fillAbandoned(results);
+    }
+
+    // Fills in the results of the consumes left out because the operation was stopped.
+    static IabResult[] fillAbandoned(IabResult[] results) {
+        for (int i = 0; i < results.length; ++i) {
+            if (results[i] == null) results[i] = new IabResult(IABHELPER_CANCELLED, "Consume abandoned.");
+        }
+        return results;
+    }
+
+    // Consumes a purchase, returning the result rather than throwing it.
+    IabResult consumeOne(Purchase purchase) {
+        try {
+            consume(purchase);
+            return new IabResult(BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku());
+        }
+        catch (IabException ex) {
+            return ex.getResult();
+        }
+    }
+
+    void postConsumeProgress(Executor executor, final OnConsumeProgressListener progress,
+                             final Purchase purchase, final IabResult result,
+                             final int completed, final int total) {
+        if (progress == null) return;
+        executor.execute(new Runnable() {
+            public void run() {
+                progress.onConsumeProgress(purchase, result, completed, total);
+            }
+        });
     }
 
     void logDebug(String msg) {
@@ -16,38 +16,76 @@
 package com.google.example.ads.customevents.impl.iab;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Represents a block of information about in-app items.
  * An Inventory is returned by such methods as {@link IabHelper#queryInventory}.
+ *
+ * An Inventory can be read from any number of threads without locking. Its
+ * contents are an immutable {@link State}; the few operations that change it
+ * ({@link #erasePurchase}, and dropping purchases that fail a pending signature
+ * check) build a new State and publish it atomically, so readers always see either
+ * the old contents or the new ones. Inventories are put together with a
+ * {@link Builder}.
  */
 public class Inventory {
-    Map<String,SkuDetails> mSkuMap = new HashMap<String,SkuDetails>();
-    Map<String,Purchase> mPurchaseMap = new HashMap<String,Purchase>();
+    // Contents of an inventory. Never modified once published.
+    static final class State {
+        final Map<String,SkuDetails> mSkuMap;
+        final Map<String,Purchase> mPurchaseMap;
+
+        // The purchases of mPurchaseMap again, by item type, so that the purchases of
+        // one type can be listed without going through the others
+        final Map<String,Map<String,Purchase>> mPurchasesByType;
+
+        // Whether some purchase may still need its signature verified
+        final boolean mMayHavePending;
+
+        State(Map<String,SkuDetails> skuMap, Map<String,Purchase> purchaseMap,
+              Map<String,Map<String,Purchase>> purchasesByType, boolean mayHavePending) {
+            mSkuMap = skuMap;
+            mPurchaseMap = purchaseMap;
+            mPurchasesByType = purchasesByType;
+            mMayHavePending = mayHavePending;
+        }
+    }
 
-    Inventory() { }
+    final AtomicReference<State> mState;
+
+    Inventory(State state) {
+        mState = new AtomicReference<State>(state);
+    }
 
     /** Returns the listing details for an in-app product. */
     public SkuDetails getSkuDetails(String sku) {
-        return mSkuMap.get(sku);
+        return mState.get().mSkuMap.get(sku);
     }
 
     /** Returns purchase information for a given product, or null if there is no purchase. */
     public Purchase getPurchase(String sku) {
-        return mPurchaseMap.get(sku);
+        Purchase p = mState.get().mPurchaseMap.get(sku);
+        if (p != null && !p.verifyIfPending()) {
+            // Loaded from a snapshot, and its signature doesn't check out.
+            removePurchase(sku, p);
+            return null;
+        }
+        return p;
     }
 
     /** Returns whether or not there exists a purchase of the given product. */
     public boolean hasPurchase(String sku) {
-        return mPurchaseMap.containsKey(sku);
+        return getPurchase(sku) != null;
     }
 
     /** Return whether or not details about the given product are available. */
     public boolean hasDetails(String sku) {
-        return mSkuMap.containsKey(sku);
+        return mState.get().mSkuMap.containsKey(sku);
     }
 
     /**
@@ -59,33 +97,150 @@ public class Inventory {
      * a new Inventory.
      */
     public void erasePurchase(String sku) {
-        if (mPurchaseMap.containsKey(sku)) mPurchaseMap.remove(sku);
+        removePurchase(sku, null);
+    }
+
+    // Publishes a state without the purchase of the given product; only if it is
+    // still p, unless p is null.
+    private void removePurchase(String sku, Purchase p) {
+        while (true) {
+            State state = mState.get();
+            Purchase current = state.mPurchaseMap.get(sku);
+            if (current == null || (p != null && current != p)) return;
+            Builder builder = new Builder(state);
+            builder.removePurchase(sku);
+            if (mState.compareAndSet(state, builder.buildState())) return;
+        }
+    }
+
+    // Verifies the purchases whose verification is still pending, dropping those
+    // that fail. Returns the state with only verified purchases.
+    State verifyPendingPurchases() {
+        while (true) {
+            State state = mState.get();
+            if (!state.mMayHavePending) return state;
+            Builder builder = new Builder();
+            builder.mSkuMap.putAll(state.mSkuMap);
+            for (Purchase p : state.mPurchaseMap.values()) {
+                if (p.verifyIfPending()) builder.addPurchase(p);
+            }
+            State verified = builder.buildState();
+            if (mState.compareAndSet(state, verified)) return verified;
+        }
     }
 
     /** Returns a list of all owned product IDs. */
     List<String> getAllOwnedSkus() {
-        return new ArrayList<String>(mPurchaseMap.keySet());
+        return new ArrayList<String>(verifyPendingPurchases().mPurchaseMap.keySet());
     }
-    
-    /** Returns a list of all owned product IDs of a given type */
-    List<String> getAllOwnedSkus(String itemType) {
-        List<String> result = new ArrayList<String>();
-        for (Purchase p : mPurchaseMap.values()) {
-            if (p.getItemType().equals(itemType)) result.add(p.getSku());
-        }
-        return result;
+
+    /** Returns the owned product IDs of a given type, as an unmodifiable set. */
+    Collection<String> getAllOwnedSkus(String itemType) {
+        Map<String,Purchase> purchases = verifyPendingPurchases().mPurchasesByType.get(itemType);
+        if (purchases == null) return Collections.<String>emptySet();
+        return Collections.unmodifiableSet(purchases.keySet());
     }
 
     /** Returns a list of all purchases. */
     List<Purchase> getAllPurchases() {
-        return new ArrayList<Purchase>(mPurchaseMap.values());
+        return new ArrayList<Purchase>(verifyPendingPurchases().mPurchaseMap.values());
     }
 
-    void addSkuDetails(SkuDetails d) {
-        mSkuMap.put(d.getSku(), d);
-    }
+    /**
+     * Puts together the contents of an inventory. A builder is used by one thread;
+     * once {@link #build} has been called it can't be used again.
+     */
+    static final class Builder {
+        private Map<String,SkuDetails> mSkuMap;
+        private Map<String,Purchase> mPurchaseMap;
+        private Map<String,Map<String,Purchase>> mPurchasesByType;
+        private boolean mMayHavePending;
 
-    void addPurchase(Purchase p) {
-        mPurchaseMap.put(p.getSku(), p);
+        /** Creates a builder for an empty inventory. */
+        Builder() {
+            mSkuMap = new HashMap<String,SkuDetails>();
+            mPurchaseMap = new HashMap<String,Purchase>();
+            mPurchasesByType = new HashMap<String,Map<String,Purchase>>();
+        }
+
+        /** Creates a builder for a copy of the given inventory. */
+        Builder(Inventory inv) {
+            this(inv.mState.get());
+        }
+
+        Builder(State state) {
+            mSkuMap = new HashMap<String,SkuDetails>(state.mSkuMap);
+            mPurchaseMap = new HashMap<String,Purchase>(state.mPurchaseMap);
+            mPurchasesByType = new HashMap<String,Map<String,Purchase>>();
+            for (Map.Entry<String,Map<String,Purchase>> e : state.mPurchasesByType.entrySet()) {
+                mPurchasesByType.put(e.getKey(), new HashMap<String,Purchase>(e.getValue()));
+            }
+            mMayHavePending = state.mMayHavePending;
+        }
+
+        Builder addSkuDetails(SkuDetails d) {
+            checkNotBuilt();
+            mSkuMap.put(d.getSku(), d);
+            return this;
+        }
+
+        Builder addPurchase(Purchase p) {
+            checkNotBuilt();
+            String sku = p.getSku();
+            Purchase previous = mPurchaseMap.put(sku, p);
+            if (previous != null && !previous.getItemType().equals(p.getItemType())) {
+                mPurchasesByType.get(previous.getItemType()).remove(sku);
+            }
+            Map<String,Purchase> purchases = mPurchasesByType.get(p.getItemType());
+            if (purchases == null) {
+                purchases = new HashMap<String,Purchase>();
+                mPurchasesByType.put(p.getItemType(), purchases);
+            }
+            purchases.put(sku, p);
+            if (p.mPendingVerificationKey != null) mMayHavePending = true;
+            return this;
+        }
+
+        Builder removePurchase(String sku) {
+            checkNotBuilt();
+            Purchase p = mPurchaseMap.remove(sku);
+            if (p != null) mPurchasesByType.get(p.getItemType()).remove(sku);
+            return this;
+        }
+
+        /** Adds the purchases and details of another builder to this one. */
+        Builder addAll(Builder other) {
+            checkNotBuilt();
+            other.checkNotBuilt();
+            mSkuMap.putAll(other.mSkuMap);
+            for (Purchase p : other.mPurchaseMap.values()) addPurchase(p);
+            return this;
+        }
+
+        /** Returns the product IDs of the purchases of the given type added so far. */
+        Collection<String> getOwnedSkus(String itemType) {
+            checkNotBuilt();
+            Map<String,Purchase> purchases = mPurchasesByType.get(itemType);
+            if (purchases == null) return Collections.<String>emptySet();
+            return Collections.unmodifiableSet(purchases.keySet());
+        }
+
+        Inventory build() {
+            return new Inventory(buildState());
+        }
+
+        // Hands the maps over to a State, without copying them.
+        State buildState() {
+            checkNotBuilt();
+            State state = new State(mSkuMap, mPurchaseMap, mPurchasesByType, mMayHavePending);
+            mSkuMap = null;
+            mPurchaseMap = null;
+            mPurchasesByType = null;
+            return state;
+        }
+
+        private void checkNotBuilt() {
+            if (mSkuMap == null) throw new IllegalStateException("Inventory already built.");
+        }
     }
 }
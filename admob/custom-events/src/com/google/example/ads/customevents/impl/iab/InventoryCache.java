@@ -0,0 +1,118 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the last inventory queried by an {@link IabHelper}, along with what was
+ * asked for and when, so that later queries can be answered from memory.
+ *
+ * The cached Inventory is handed out as is. Local updates (after a consume or a
+ * purchase) replace it with an updated copy built with an {@link Inventory.Builder}.
+ */
+class InventoryCache {
+    private Inventory mInventory;
+    private boolean mHasSkuDetails;
+    private List<String> mMoreSkus;
+    private long mUpdateTime;
+
+    // Bumped by every local update, so that a query which started before an update
+    // doesn't overwrite it with data from before the update.
+    private long mVersion;
+
+    /**
+     * Returns the cached inventory if it answers a query with the given arguments,
+     * regardless of its age, or null.
+     */
+    synchronized Inventory get(boolean querySkuDetails, List<String> moreSkus) {
+        if (mInventory == null) return null;
+        if (!IabHelper.queryCovers(mHasSkuDetails, mMoreSkus, querySkuDetails, moreSkus)) return null;
+        return mInventory;
+    }
+
+    /** Returns the cached inventory, or null. */
+    synchronized Inventory peek() {
+        return mInventory;
+    }
+
+    /** Returns how long ago, in milliseconds, the cached inventory was queried. */
+    synchronized long getAge() {
+        return SystemClock.elapsedRealtime() - mUpdateTime;
+    }
+
+    /** Returns a token to pass to {@link #put} for a query that is about to start. */
+    synchronized long beginQuery() {
+        return mVersion;
+    }
+
+    /**
+     * Replaces the cached inventory with a freshly queried one. If the cache was
+     * updated locally since the query began, the queried inventory may predate that
+     * update, so the cache is cleared instead.
+     *
+     * @param version the value {@link #beginQuery} returned when the query started
+     */
+    synchronized void put(Inventory inv, boolean querySkuDetails, List<String> moreSkus,
+                          long version) {
+        if (version != mVersion) {
+            invalidate();
+            return;
+        }
+        mInventory = inv;
+        mHasSkuDetails = querySkuDetails;
+        mMoreSkus = moreSkus == null ? null : new ArrayList<String>(moreSkus);
+        mUpdateTime = SystemClock.elapsedRealtime();
+    }
+
+    /** Records locally that the given product is no longer owned, e.g. after consuming it. */
+    void erasePurchase(String sku) {
+        Inventory inv;
+        synchronized (this) {
+            mVersion++;
+            inv = mInventory;
+        }
+        while (inv != null) {
+            // Looking the purchase up may check its signature, so it's done outside the
+            // lock; the copy is only swapped in if nothing replaced the inventory meanwhile.
+            if (!inv.hasPurchase(sku)) return;
+            Inventory updated = new Inventory.Builder(inv).removePurchase(sku).build();
+            synchronized (this) {
+                if (mInventory == inv) {
+                    mInventory = updated;
+                    return;
+                }
+                inv = mInventory;
+            }
+        }
+    }
+
+    /** Records locally that the given purchase is owned, e.g. after buying it. */
+    synchronized void addPurchase(Purchase purchase) {
+        mVersion++;
+        if (mInventory == null) return;
+        mInventory = new Inventory.Builder(mInventory).addPurchase(purchase).build();
+    }
+
+    /** Forgets the cached inventory. */
+    synchronized void invalidate() {
+        mInventory = null;
+        mMoreSkus = null;
+    }
+}
@@ -0,0 +1,164 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and writes a compact binary copy of an {@link Inventory}, so that an app
+ * can tell what the user owns as soon as it starts, before the billing service is
+ * even bound.
+ *
+ * The file holds, after a magic number and a format version, the purchases (item
+ * type, original JSON and signature) and the SKU details (item type and JSON) as
+ * length-prefixed UTF-8 strings. It is read through a memory mapping. Purchases
+ * read back from it are not trusted until their signatures have been verified
+ * again, which happens the first time each one is looked up in the inventory.
+ */
+class InventorySnapshot {
+    private static final String TAG = "IABUtil/InventorySnapshot";
+
+    private static final int MAGIC = 0x49414253; // "IABS"
+    private static final int VERSION = 1;
+
+    private static final String CHARSET = "UTF-8";
+
+    private InventorySnapshot() { }
+
+    /**
+     * Writes the inventory to the given file. The snapshot is written to a temporary
+     * file first and then renamed, so readers never see a partial snapshot.
+     */
+    static void write(File file, Inventory inv) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            Inventory.State state = inv.mState.get();
+            out.writeInt(state.mPurchaseMap.size());
+            for (Purchase p : state.mPurchaseMap.values()) {
+                writeString(out, p.getItemType());
+                writeString(out, p.getOriginalJson());
+                writeString(out, p.getSignature());
+            }
+            out.writeInt(state.mSkuMap.size());
+            for (SkuDetails d : state.mSkuMap.values()) {
+                writeString(out, d.mItemType);
+                writeString(out, d.mJson);
+            }
+        }
+        finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can't rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Reads an inventory from the given file.
+     *
+     * @param base64PublicKey the key to verify purchase signatures with when the
+     *     purchases are first looked up.
+     * @return the inventory, or null if there is no snapshot or it can't be read.
+     */
+    static Inventory read(File file, String base64PublicKey) {
+        if (!file.exists()) return null;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                Log.w(TAG, "Ignoring snapshot with unknown format.");
+                return null;
+            }
+
+            Inventory.Builder inv = new Inventory.Builder();
+            int purchases = buf.getInt();
+            for (int i = 0; i < purchases; i++) {
+                String itemType = readString(buf);
+                String json = readString(buf);
+                String signature = readString(buf);
+                Purchase p = new Purchase(itemType, json, signature);
+                p.mPendingVerificationKey = base64PublicKey;
+                inv.addPurchase(p);
+            }
+            int skus = buf.getInt();
+            for (int i = 0; i < skus; i++) {
+                String itemType = readString(buf);
+                inv.addSkuDetails(new SkuDetails(itemType, readString(buf)));
+            }
+            return inv.build();
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Can't read inventory snapshot: " + e);
+        }
+        catch (BufferUnderflowException e) {
+            Log.w(TAG, "Inventory snapshot is truncated.");
+        }
+        catch (JSONException e) {
+            Log.w(TAG, "Inventory snapshot holds bad JSON.");
+        }
+        finally {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        return null;
+    }
+
+    // Strings are written as their length in bytes (-1 for null) and their UTF-8 bytes.
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buf) throws UnsupportedEncodingException {
+        int len = buf.getInt();
+        if (len == -1) return null;
+        if (len < 0 || len > buf.remaining()) throw new BufferUnderflowException();
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+}
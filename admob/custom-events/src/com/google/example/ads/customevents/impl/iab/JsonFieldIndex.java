@@ -0,0 +1,97 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.text.ParseException;
+
+/**
+ * Records where the values of some top-level fields of a JSON object are in its
+ * text, so that they can be decoded when they are asked for rather than up front.
+ *
+ * The object is read once with a {@link BillingJsonReader} when the index is
+ * created, which checks that it is well formed and finds the fields but allocates
+ * nothing else. The accessors follow the conventions of JSONObject's opt methods:
+ * a value of the wrong type is converted if it can be, and a missing one yields
+ * the fallback.
+ */
+class JsonFieldIndex {
+    private final String mJson;
+
+    // Start and end offsets in mJson of the value of each key, or -1 if it is absent.
+    // The text of a string value includes its quotes.
+    private final int[] mBounds;
+
+    /**
+     * Reads a JSON object for the values of the given keys.
+     *
+     * @throws ParseException if the text isn't a well-formed JSON object.
+     */
+    JsonFieldIndex(String json, String[] keys) throws ParseException {
+        mJson = json;
+        mBounds = new int[keys.length * 2];
+        for (int i = 0; i < mBounds.length; i++) mBounds[i] = -1;
+
+        BillingJsonReader reader = new BillingJsonReader(json);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int key = reader.nextName(keys);
+            int start = reader.position();
+            reader.skipValue();
+            if (key >= 0) {
+                // a repeated key takes the last value, as with JSONObject
+                mBounds[key * 2] = start;
+                mBounds[key * 2 + 1] = reader.position();
+            }
+        }
+        reader.endObject();
+    }
+
+    /** Returns whether the object has a value for the key at the given index. */
+    boolean has(int key) {
+        return mBounds[key * 2] >= 0;
+    }
+
+    /**
+     * Returns the value for the key at the given index as a string. Strings are
+     * unescaped; other values are returned as written.
+     */
+    String optString(int key, String fallback) {
+        int start = mBounds[key * 2];
+        if (start < 0) return fallback;
+        int end = mBounds[key * 2 + 1];
+        if (mJson.charAt(start) != '"') return mJson.substring(start, end);
+        return BillingJsonReader.unescape(mJson, start + 1, end - 1);
+    }
+
+    /** Returns the value for the key at the given index as a long, or 0. */
+    long optLong(int key) {
+        int start = mBounds[key * 2];
+        if (start < 0) return 0L;
+        int end = mBounds[key * 2 + 1];
+        char c = mJson.charAt(start);
+        if (c == '{' || c == '[') return 0L;
+        if (c == '"') {
+            return BillingJsonReader.parseLong(
+                    BillingJsonReader.unescape(mJson, start + 1, end - 1).trim());
+        }
+        return BillingJsonReader.parseLong(mJson, start, end);
+    }
+
+    /** Returns the value for the key at the given index as an int, or 0. */
+    int optInt(int key) {
+        return (int) optLong(key);
+    }
+}
@@ -16,48 +16,124 @@
 package com.google.example.ads.customevents.impl.iab;
 
 import org.json.JSONException;
-import org.json.JSONObject;
+
+import java.text.ParseException;
 
 /**
  * Represents an in-app billing purchase.
  */
 public class Purchase {
+    // Fields of the purchase JSON we read, and their indexes in mFields
+    static final String[] KEYS = { "orderId", "packageName", "productId",
+            "purchaseTime", "purchaseState", "developerPayload", "token", "purchaseToken" };
+    private static final int ORDER_ID = 0;
+    private static final int PACKAGE_NAME = 1;
+    private static final int PRODUCT_ID = 2;
+    private static final int PURCHASE_TIME = 3;
+    private static final int PURCHASE_STATE = 4;
+    private static final int DEVELOPER_PAYLOAD = 5;
+    private static final int TOKEN = 6;
+    private static final int PURCHASE_TOKEN = 7;
+
     String mItemType;  // ITEM_TYPE_INAPP or ITEM_TYPE_SUBS
+    String mOriginalJson;
+    String mSignature;
+
+    // Where the fields are in mOriginalJson. They are only decoded when first asked
+    // for; two threads racing to decode one just both do, as the strings are immutable.
+    final JsonFieldIndex mFields;
     String mOrderId;
     String mPackageName;
     String mSku;
-    long mPurchaseTime;
-    int mPurchaseState;
     String mDeveloperPayload;
     String mToken;
-    String mOriginalJson;
-    String mSignature;
+
+    // Key to check the signature with before this purchase can be trusted, for
+    // purchases that weren't verified when they were created; null otherwise.
+    String mPendingVerificationKey;
 
     public Purchase(String itemType, String jsonPurchaseInfo, String signature) throws JSONException {
+        this(itemType, jsonPurchaseInfo, signature, index(jsonPurchaseInfo));
+    }
+
+    Purchase(String itemType, String jsonPurchaseInfo, String signature, JsonFieldIndex fields) {
         mItemType = itemType;
         mOriginalJson = jsonPurchaseInfo;
-        JSONObject o = new JSONObject(mOriginalJson);
-        mOrderId = o.optString("orderId");
-        mPackageName = o.optString("packageName");
-        mSku = o.optString("productId");
-        mPurchaseTime = o.optLong("purchaseTime");
-        mPurchaseState = o.optInt("purchaseState");
-        mDeveloperPayload = o.optString("developerPayload");
-        mToken = o.optString("token", o.optString("purchaseToken"));
+        mFields = fields;
         mSignature = signature;
     }
 
+    /**
+     * Reads a purchase from its JSON in a single pass, without org.json.
+     *
+     * @throws ParseException if the JSON is malformed.
+     */
+    static Purchase parse(String itemType, String jsonPurchaseInfo, String signature)
+            throws ParseException {
+        return new Purchase(itemType, jsonPurchaseInfo, signature,
+                new JsonFieldIndex(jsonPurchaseInfo, KEYS));
+    }
+
+    private static JsonFieldIndex index(String jsonPurchaseInfo) throws JSONException {
+        try {
+            return new JsonFieldIndex(jsonPurchaseInfo, KEYS);
+        }
+        catch (ParseException e) {
+            throw new JSONException(e.getMessage());
+        }
+    }
+
     public String getItemType() { return mItemType; }
-    public String getOrderId() { return mOrderId; }
-    public String getPackageName() { return mPackageName; }
-    public String getSku() { return mSku; }
-    public long getPurchaseTime() { return mPurchaseTime; }
-    public int getPurchaseState() { return mPurchaseState; }
-    public String getDeveloperPayload() { return mDeveloperPayload; }
-    public String getToken() { return mToken; }
+
+    public String getOrderId() {
+        String orderId = mOrderId;
+        if (orderId == null) mOrderId = orderId = mFields.optString(ORDER_ID, "");
+        return orderId;
+    }
+
+    public String getPackageName() {
+        String packageName = mPackageName;
+        if (packageName == null) mPackageName = packageName = mFields.optString(PACKAGE_NAME, "");
+        return packageName;
+    }
+
+    public String getSku() {
+        String sku = mSku;
+        if (sku == null) mSku = sku = mFields.optString(PRODUCT_ID, "");
+        return sku;
+    }
+
+    public long getPurchaseTime() { return mFields.optLong(PURCHASE_TIME); }
+    public int getPurchaseState() { return mFields.optInt(PURCHASE_STATE); }
+
+    public String getDeveloperPayload() {
+        String payload = mDeveloperPayload;
+        if (payload == null) mDeveloperPayload = payload = mFields.optString(DEVELOPER_PAYLOAD, "");
+        return payload;
+    }
+
+    public String getToken() {
+        String token = mToken;
+        if (token == null) {
+            token = mFields.has(TOKEN) ? mFields.optString(TOKEN, "")
+                                       : mFields.optString(PURCHASE_TOKEN, "");
+            mToken = token;
+        }
+        return token;
+    }
+
     public String getOriginalJson() { return mOriginalJson; }
     public String getSignature() { return mSignature; }
 
+    // Verifies the signature if that is still pending. Returns false if it doesn't match.
+    boolean verifyIfPending() {
+        String key = mPendingVerificationKey;
+        if (key == null) return true;
+        if (!Security.verifyPurchase(key, mOriginalJson, mSignature)) return false;
+        mPendingVerificationKey = null;
+        return true;
+    }
+
     @Override
     public String toString() { return "PurchaseInfo(type:" + mItemType + "):" + mOriginalJson; }
 }
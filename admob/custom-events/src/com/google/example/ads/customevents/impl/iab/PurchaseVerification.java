@@ -0,0 +1,91 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import java.text.ParseException;
+import java.util.concurrent.Executor;
+
+/**
+ * Checks a purchase returned by the purchase flow. The purchase data is parsed and its
+ * signature verified on a worker, and only the outcome is handed back through another
+ * executor, so the UI thread that receives the activity result does no RSA work.
+ */
+class PurchaseVerification {
+    /** Receives the outcome of a verification. */
+    interface Listener {
+        /**
+         * Called on the worker when the purchase checked out, before the outcome is
+         * delivered; a place for further background work, such as saving it.
+         */
+        void onVerified(Purchase purchase);
+
+        /**
+         * Called through the delivery executor with the outcome. The purchase is null if
+         * its data couldn't be parsed.
+         */
+        void onFinished(IabResult result, Purchase purchase);
+    }
+
+    private PurchaseVerification() { }
+
+    /**
+     * Parses and verifies a purchase on worker, then reports the outcome through
+     * delivery. Returns without waiting for either.
+     *
+     * @param base64PublicKey the key to verify the signature with
+     * @param itemType the item type of the purchase flow
+     * @param purchaseData the purchase JSON returned by the purchase flow
+     * @param dataSignature the signature of purchaseData
+     */
+    static void verifyAsync(final String base64PublicKey, final String itemType,
+                            final String purchaseData, final String dataSignature,
+                            Executor worker, final Executor delivery, final Listener listener) {
+        worker.execute(new Runnable() {
+            public void run() {
+                IabResult result;
+                Purchase purchase = null;
+                try {
+                    purchase = Purchase.parse(itemType, purchaseData, dataSignature);
+                    String sku = purchase.getSku();
+
+                    // Verify signature
+                    if (!Security.verifyPurchase(base64PublicKey, purchaseData, dataSignature)) {
+                        result = new IabResult(IabHelper.IABHELPER_VERIFICATION_FAILED,
+                                "Signature verification failed for sku " + sku);
+                    }
+                    else {
+                        result = new IabResult(IabHelper.BILLING_RESPONSE_RESULT_OK, "Success");
+                        listener.onVerified(purchase);
+                    }
+                }
+                catch (ParseException e) {
+                    e.printStackTrace();
+                    result = new IabResult(IabHelper.IABHELPER_BAD_RESPONSE,
+                            "Failed to parse purchase data.");
+                    purchase = null;
+                }
+
+                final IabResult result_f = result;
+                final Purchase purchase_f = purchase;
+                delivery.execute(new Runnable() {
+                    public void run() {
+                        listener.onFinished(result_f, purchase_f);
+                    }
+                });
+            }
+        });
+    }
+}
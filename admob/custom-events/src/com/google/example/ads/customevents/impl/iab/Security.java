@@ -30,6 +30,7 @@ import java.security.Signature;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Security-related methods. For a secure implementation, all of this code
@@ -46,6 +47,13 @@ public class Security {
     private static final String KEY_FACTORY_ALGORITHM = "RSA";
     private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
 
+    // Verifiers for parsed public keys, keyed by the keys' base64 encoding. Parsing
+    // a key takes a base64 decode, a KeyFactory lookup and an X.509 parse, so we only
+    // want to pay for it once per key rather than once per purchase. The verifiers in
+    // turn keep one initialized Signature per thread.
+    private static final ConcurrentHashMap<String, SignatureVerifier> sVerifierCache =
+            new ConcurrentHashMap<String, SignatureVerifier>();
+
     /**
      * Verifies that the data was signed with the given signature, and returns
      * the verified purchase. The data is in JSON format and signed
@@ -63,8 +71,8 @@ public class Security {
 
         boolean verified = false;
         if (!TextUtils.isEmpty(signature)) {
-            PublicKey key = Security.generatePublicKey(base64PublicKey);
-            verified = Security.verify(key, signedData, signature);
+            SignatureVerifier verifier = Security.getVerifier(base64PublicKey);
+            verified = verifier.verify(signedData, signature);
             if (!verified) {
                 Log.w(TAG, "signature does not match data.");
                 return false;
@@ -73,6 +81,37 @@ public class Security {
         return true;
     }
 
+    /**
+     * Returns the shared {@link SignatureVerifier} for a string containing the
+     * Base64-encoded public key, creating it the first time the key is seen.
+     * Safe to call from any thread.
+     *
+     * @param encodedPublicKey Base64-encoded public key
+     * @throws IllegalArgumentException if encodedPublicKey is invalid
+     */
+    public static SignatureVerifier getVerifier(String encodedPublicKey) {
+        SignatureVerifier verifier = sVerifierCache.get(encodedPublicKey);
+        if (verifier == null) {
+            verifier = new SignatureVerifier(generatePublicKey(encodedPublicKey));
+            SignatureVerifier existing = sVerifierCache.putIfAbsent(encodedPublicKey, verifier);
+            if (existing != null) verifier = existing;
+        }
+        return verifier;
+    }
+
+    /**
+     * Drops the cached verifier for the given Base64-encoded key, if any. The next
+     * verification with that key will parse it again.
+     */
+    public static void invalidatePublicKey(String encodedPublicKey) {
+        sVerifierCache.remove(encodedPublicKey);
+    }
+
+    /** Drops all cached verifiers. */
+    public static void clearPublicKeyCache() {
+        sVerifierCache.clear();
+    }
+
     /**
      * Generates a PublicKey instance from a string containing the
      * Base64-encoded public key.
@@ -99,6 +138,8 @@ public class Security {
     /**
      * Verifies that the signature from the server matches the computed
      * signature on the data.  Returns true if the data is correctly signed.
+     * This is a one-shot check; use {@link #getVerifier} to verify many
+     * purchases against the same key.
      *
      * @param publicKey public key associated with the developer account
      * @param signedData signed data from server
@@ -0,0 +1,224 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * Verifies signatures made with the private counterpart of a single public key.
+ *
+ * Looking up a {@link Signature} through the JCA providers and initializing it is
+ * far more expensive than the verification of a short purchase. Each thread that
+ * uses a verifier therefore gets its own Signature instance, initialized once with
+ * the public key and reused for every later verification on that thread. Calling
+ * {@link Signature#verify} resets the instance to its freshly initialized state, so
+ * no explicit reset is needed between uses; an instance that threw is discarded.
+ *
+ * Instances are safe to share between threads.
+ */
+public class SignatureVerifier {
+    private static final String TAG = "IABUtil/SignatureVerifier";
+
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+    // Scratch buffers above this size are not kept around after use.
+    private static final int MAX_RETAINED_SCRATCH_SIZE = 64 * 1024;
+
+    // Per-thread buffers the signed data and the signature are encoded into before
+    // being fed to the Signature, so that verification allocates nothing once they
+    // are large enough.
+    private static final ThreadLocal<byte[]> sDataScratch = new ThreadLocal<byte[]>();
+    private static final ThreadLocal<byte[]> sSignatureScratch = new ThreadLocal<byte[]>();
+
+    private final PublicKey mPublicKey;
+
+    private final ThreadLocal<Signature> mSignature = new ThreadLocal<Signature>();
+
+    public SignatureVerifier(PublicKey publicKey) {
+        if (publicKey == null) throw new IllegalArgumentException("publicKey is null");
+        mPublicKey = publicKey;
+    }
+
+    /**
+     * Verifies that the signature matches the given signed data. The data is encoded
+     * as UTF-8, which is the default charset on Android.
+     *
+     * @param signedData signed data from server
+     * @param signature server signature, in base64 encoding
+     * @return true if the data and signature match
+     */
+    public boolean verify(String signedData, String signature) {
+        // Four characters decode to at most three bytes.
+        byte[] sig = scratch(sSignatureScratch, signature.length() / 4 * 3 + 2);
+        int sigLen;
+        try {
+            sigLen = Base64.decode(signature, 0, signature.length(), sig, 0);
+        } catch (Base64DecoderException e) {
+            Log.e(TAG, "Base64 decoding failed.");
+            return false;
+        }
+
+        byte[] data = scratch(sDataScratch, utf8Length(signedData));
+        int len = encodeUtf8(signedData, data);
+        return verify(data, 0, len, sig, 0, sigLen);
+    }
+
+    /**
+     * Verifies that the signature matches the given signed data.
+     *
+     * @param data buffer holding the signed data
+     * @param off offset of the signed data in the buffer
+     * @param len length of the signed data
+     * @param signature buffer holding the raw (decoded) signature
+     * @param sigOff offset of the signature in its buffer
+     * @param sigLen length of the signature
+     * @return true if the data and signature match
+     */
+    public boolean verify(byte[] data, int off, int len, byte[] signature, int sigOff, int sigLen) {
+        Signature sig = acquire();
+        if (sig == null) return false;
+        try {
+            sig.update(data, off, len);
+            if (!sig.verify(signature, sigOff, sigLen)) {
+                Log.e(TAG, "Signature verification failed.");
+                return false;
+            }
+            return true;
+        } catch (SignatureException e) {
+            Log.e(TAG, "Signature exception.");
+            mSignature.remove();
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid signature bounds.");
+            mSignature.remove();
+        }
+        return false;
+    }
+
+    /**
+     * Verifies that the signature matches the signed data remaining in the given
+     * buffer. The buffer's position is advanced to its limit.
+     *
+     * @param data the signed data
+     * @param signature the raw (decoded) signature
+     * @return true if the data and signature match
+     */
+    public boolean verify(ByteBuffer data, byte[] signature) {
+        Signature sig = acquire();
+        if (sig == null) return false;
+        try {
+            sig.update(data);
+            if (!sig.verify(signature)) {
+                Log.e(TAG, "Signature verification failed.");
+                return false;
+            }
+            return true;
+        } catch (SignatureException e) {
+            Log.e(TAG, "Signature exception.");
+            mSignature.remove();
+        }
+        return false;
+    }
+
+    // Returns this thread's Signature, initialized for verification with our key,
+    // or null if one can't be created.
+    private Signature acquire() {
+        Signature sig = mSignature.get();
+        if (sig != null) return sig;
+        try {
+            sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+            sig.initVerify(mPublicKey);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "NoSuchAlgorithmException.");
+            return null;
+        } catch (InvalidKeyException e) {
+            Log.e(TAG, "Invalid key specification.");
+            return null;
+        }
+        mSignature.set(sig);
+        return sig;
+    }
+
+    // Returns this thread's buffer from the given scratch, grown to at least len bytes.
+    private static byte[] scratch(ThreadLocal<byte[]> scratch, int len) {
+        byte[] buf = scratch.get();
+        if (buf == null || buf.length < len) {
+            buf = new byte[Math.max(len, buf == null ? 1024 : buf.length * 2)];
+            if (buf.length <= MAX_RETAINED_SCRATCH_SIZE) scratch.set(buf);
+        }
+        return buf;
+    }
+
+    // Returns the number of bytes needed to encode s as UTF-8.
+    static int utf8Length(String s) {
+        int n = s.length();
+        int len = n;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) continue;
+            if (c < 0x800) {
+                len += 1;
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                len += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // four bytes for the two chars of the pair
+                len += 2;
+                i++;
+            }
+            // else: an unpaired surrogate, encoded as a single '?'
+        }
+        return len;
+    }
+
+    // Encodes s as UTF-8 into dest, which must hold at least utf8Length(s) bytes.
+    // Unpaired surrogates are encoded as '?', as String.getBytes() does.
+    static int encodeUtf8(String s, byte[] dest) {
+        int n = s.length();
+        int d = 0;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dest[d++] = (byte) c;
+            } else if (c < 0x800) {
+                dest[d++] = (byte) (0xc0 | (c >> 6));
+                dest[d++] = (byte) (0x80 | (c & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                if (Character.isHighSurrogate(c) && i + 1 < n
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    dest[d++] = (byte) (0xf0 | (cp >> 18));
+                    dest[d++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    dest[d++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    dest[d++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    dest[d++] = (byte) '?';
+                }
+            } else {
+                dest[d++] = (byte) (0xe0 | (c >> 12));
+                dest[d++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                dest[d++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return d;
+    }
+}
@@ -16,40 +16,93 @@
 package com.google.example.ads.customevents.impl.iab;
 
 import org.json.JSONException;
-import org.json.JSONObject;
+
+import java.text.ParseException;
 
 /**
  * Represents an in-app product's listing details.
  */
 public class SkuDetails {
+    // Fields of the details JSON we read, and their indexes in mFields
+    static final String[] KEYS = { "productId", "type", "price", "title", "description" };
+    private static final int PRODUCT_ID = 0;
+    private static final int TYPE = 1;
+    private static final int PRICE = 2;
+    private static final int TITLE = 3;
+    private static final int DESCRIPTION = 4;
+
     String mItemType;
+    String mJson;
+
+    // Where the fields are in mJson; they are only decoded when first asked for.
+    final JsonFieldIndex mFields;
     String mSku;
     String mType;
     String mPrice;
     String mTitle;
     String mDescription;
-    String mJson;
 
     public SkuDetails(String jsonSkuDetails) throws JSONException {
         this(IabHelper.ITEM_TYPE_INAPP, jsonSkuDetails);
     }
     
     public SkuDetails(String itemType, String jsonSkuDetails) throws JSONException {
+        this(itemType, jsonSkuDetails, index(jsonSkuDetails));
+    }
+
+    SkuDetails(String itemType, String jsonSkuDetails, JsonFieldIndex fields) {
         mItemType = itemType;
         mJson = jsonSkuDetails;
-        JSONObject o = new JSONObject(mJson);
-        mSku = o.optString("productId");
-        mType = o.optString("type");
-        mPrice = o.optString("price");
-        mTitle = o.optString("title");
-        mDescription = o.optString("description");
-    }
-
-    public String getSku() { return mSku; }
-    public String getType() { return mType; }
-    public String getPrice() { return mPrice; }
-    public String getTitle() { return mTitle; }
-    public String getDescription() { return mDescription; }
+        mFields = fields;
+    }
+
+    /**
+     * Reads SKU details from their JSON in a single pass, without org.json.
+     *
+     * @throws ParseException if the JSON is malformed.
+     */
+    static SkuDetails parse(String itemType, String jsonSkuDetails) throws ParseException {
+        return new SkuDetails(itemType, jsonSkuDetails, new JsonFieldIndex(jsonSkuDetails, KEYS));
+    }
+
+    private static JsonFieldIndex index(String jsonSkuDetails) throws JSONException {
+        try {
+            return new JsonFieldIndex(jsonSkuDetails, KEYS);
+        }
+        catch (ParseException e) {
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    public String getSku() {
+        String sku = mSku;
+        if (sku == null) mSku = sku = mFields.optString(PRODUCT_ID, "");
+        return sku;
+    }
+
+    public String getType() {
+        String type = mType;
+        if (type == null) mType = type = mFields.optString(TYPE, "");
+        return type;
+    }
+
+    public String getPrice() {
+        String price = mPrice;
+        if (price == null) mPrice = price = mFields.optString(PRICE, "");
+        return price;
+    }
+
+    public String getTitle() {
+        String title = mTitle;
+        if (title == null) mTitle = title = mFields.optString(TITLE, "");
+        return title;
+    }
+
+    public String getDescription() {
+        String description = mDescription;
+        if (description == null) mDescription = description = mFields.optString(DESCRIPTION, "");
+        return description;
+    }
 
     @Override
     public String toString() {
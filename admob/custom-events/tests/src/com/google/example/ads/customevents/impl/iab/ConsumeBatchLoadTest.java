@@ -0,0 +1,109 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A load test of consuming a batch of purchases, as after an outage leaves dozens
+ * unconsumed, against a fake billing service that takes a while over each consume.
+ * The wall-clock times of consuming one at a time and in parallel are logged under
+ * the tag IabConsumeTest.
+ */
+public class ConsumeBatchLoadTest extends AndroidTestCase {
+    private static final String TAG = "IabConsumeTest";
+    private static final int PURCHASES = 40;
+    private static final long LATENCY_MS = 50;
+
+    private List<Purchase> mPurchases;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPurchases = new ArrayList<Purchase>(PURCHASES);
+        for (int i = 0; i < PURCHASES; ++i) {
+            mPurchases.add(Purchase.parse(IabHelper.ITEM_TYPE_INAPP,
+                    FakeBillingService.purchaseJson("sku_" + i), ""));
+        }
+    }
+
+    public void testParallelConsumeIsFaster() throws Exception {
+        long serial = consumeAll(1);
+        long parallel = consumeAll(IabExecutors.BILLING_POOL_SIZE);
+        Log.i(TAG, PURCHASES + " consumes of " + LATENCY_MS + " ms: one at a time " + serial
+                + " ms, " + IabExecutors.BILLING_POOL_SIZE + " at a time " + parallel + " ms");
+        assertTrue("serial " + serial + " ms, parallel " + parallel + " ms", parallel * 2 < serial);
+    }
+
+    public void testProgressIsReportedAsItemsComplete() throws Exception {
+        FakeBillingService service = new FakeBillingService(LATENCY_MS, Collections.<String>emptyList());
+        IabHelper helper = service.newHelper(getContext());
+        final List<Long> progressTimes = Collections.synchronizedList(new ArrayList<Long>());
+        IabHelper.OnConsumeProgressListener progress = new IabHelper.OnConsumeProgressListener() {
+            public void onConsumeProgress(Purchase purchase, IabResult result, int completed, int total) {
+                progressTimes.add(System.nanoTime());
+            }
+
+            public void onConsumeMultiFinished(List<Purchase> purchases, List<IabResult> results) {
+            }
+        };
+        long start = System.nanoTime();
+        helper.consumeAsyncInternal(mPurchases, progress, IabFuture.directExecutor())
+                .get(10, TimeUnit.SECONDS);
+        long end = System.nanoTime();
+        helper.dispose();
+
+        assertEquals(PURCHASES, progressTimes.size());
+        // The first items are reported long before the batch is done.
+        assertTrue(progressTimes.get(0) - start < (end - start) / 4);
+    }
+
+    public void testSlowConsumesTimeOut() throws Exception {
+        FakeBillingService service = new FakeBillingService(10 * LATENCY_MS, Collections.<String>emptyList());
+        IabHelper helper = service.newHelper(getContext());
+        helper.setConsumeTimeout(LATENCY_MS);
+        long start = System.nanoTime();
+        List<IabResult> results = helper.consumeAsync(mPurchases.subList(0, 4)).get(10, TimeUnit.SECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        helper.dispose();
+
+        for (IabResult result : results) assertEquals(IabHelper.IABHELPER_TIMEOUT, result.getResponse());
+        assertTrue("took " + elapsed + " ms", elapsed < 10 * LATENCY_MS);
+    }
+
+    // Consumes the purchases with the given concurrency and returns the time taken in ms.
+    private long consumeAll(int concurrency) throws Exception {
+        FakeBillingService service = new FakeBillingService(LATENCY_MS, Collections.<String>emptyList());
+        IabHelper helper = service.newHelper(getContext());
+        helper.setConsumeConcurrency(concurrency);
+        long start = System.nanoTime();
+        List<IabResult> results = helper.consumeAsync(mPurchases).get(10 * PURCHASES * LATENCY_MS,
+                TimeUnit.MILLISECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        helper.dispose();
+
+        for (IabResult result : results) assertTrue(result.toString(), result.isSuccess());
+        assertEquals(PURCHASES, service.mConsumeCalls.get());
+        assertTrue(service.getPeakCallsInFlight() <= concurrency);
+        return elapsed;
+    }
+}
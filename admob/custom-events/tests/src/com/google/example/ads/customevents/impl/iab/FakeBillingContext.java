@@ -0,0 +1,96 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.mock.MockPackageManager;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An application context whose billing service is a {@link FakeBillingService}, so
+ * that helpers can go through setup as they do in an app. Binding connects on the
+ * main thread, as the system does; with no service set, there is no billing service
+ * on the device.
+ *
+ * The billing connection is shared by the whole process and keeps the context it was
+ * first opened with, so there is one of these per process, and tests change its
+ * service rather than create their own. Set a connection idle timeout of 0, so that
+ * disposing of the helpers closes the connection and the next test binds afresh.
+ */
+class FakeBillingContext extends ContextWrapper {
+    private static FakeBillingContext sInstance;
+
+    private final Handler mMainThread = new Handler(Looper.getMainLooper());
+    private volatile FakeBillingService mService;
+
+    private FakeBillingContext(Context base) {
+        super(base);
+    }
+
+    static synchronized FakeBillingContext get(Context context) {
+        if (sInstance == null) sInstance = new FakeBillingContext(context.getApplicationContext());
+        return sInstance;
+    }
+
+    /** Sets the service that binding connects to, or null for none. */
+    void setService(FakeBillingService service) {
+        mService = service;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public PackageManager getPackageManager() {
+        return new MockPackageManager() {
+            @Override
+            public List<ResolveInfo> queryIntentServices(Intent intent, int flags) {
+                return mService == null ? Collections.<ResolveInfo>emptyList()
+                        : Collections.singletonList(new ResolveInfo());
+            }
+        };
+    }
+
+    @Override
+    public boolean bindService(Intent service, final ServiceConnection conn, int flags) {
+        final FakeBillingService fake = mService;
+        if (fake == null) return false;
+        mMainThread.post(new Runnable() {
+            public void run() {
+                conn.onServiceConnected(new ComponentName("com.android.vending",
+                        "com.google.android.finsky.billing.iab.InAppBillingService"), fake.asBinder());
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void unbindService(ServiceConnection conn) {
+        // nothing to do: the fake service doesn't disconnect
+    }
+}
@@ -0,0 +1,212 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.IBinder;
+
+import com.android.vending.billing.IInAppBillingService;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process billing service for tests. Every call succeeds after a set delay,
+ * standing in for the binder round trip, and is counted. getPurchases returns the
+ * owned in-app SKUs in one page, unsigned unless the service is given keys to sign
+ * them with; getSkuDetails returns details for the SKUs asked for. getPurchases can
+ * also be made to hang, as the service sometimes does. Helpers can be
+ * handed the service directly with {@link #newHelper}, or bind to it through a
+ * {@link FakeBillingContext}.
+ */
+class FakeBillingService implements InvocationHandler {
+    final AtomicInteger mGetPurchasesCalls = new AtomicInteger();
+    final AtomicInteger mGetSkuDetailsCalls = new AtomicInteger();
+    final AtomicInteger mConsumeCalls = new AtomicInteger();
+
+    // What isBillingSupported() answers
+    volatile int mBillingSupportedResponse = IabHelper.BILLING_RESPONSE_RESULT_OK;
+    // What getPurchases calls wait on before answering, if anything
+    private volatile CountDownLatch mGetPurchasesGate;
+
+    private final IInAppBillingService mProxy = (IInAppBillingService) Proxy.newProxyInstance(
+            IInAppBillingService.class.getClassLoader(),
+            new Class<?>[] { IInAppBillingService.class }, this);
+    private final Binder mBinder = new Binder();
+
+    private final long mLatency;
+    private final List<String> mOwnedSkus;
+    private final String mPublicKey;
+    private final Map<String, String> mSignatures = new HashMap<String, String>();
+    private final AtomicInteger mCallsInFlight = new AtomicInteger();
+    private final AtomicInteger mPeakCallsInFlight = new AtomicInteger();
+
+    FakeBillingService(long latencyMillis, List<String> ownedSkus) {
+        mLatency = latencyMillis;
+        mOwnedSkus = ownedSkus;
+        mPublicKey = "unused: purchases are unsigned";
+        mBinder.attachInterface(mProxy, IInAppBillingService.class.getName());
+    }
+
+    /** Creates a service whose purchases are signed with the given keys. */
+    FakeBillingService(long latencyMillis, List<String> ownedSkus, KeyPair keys)
+            throws Exception {
+        mLatency = latencyMillis;
+        mOwnedSkus = ownedSkus;
+        mPublicKey = Base64.encode(keys.getPublic().getEncoded());
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        for (String sku : ownedSkus) {
+            signature.initSign(keys.getPrivate());
+            signature.update(purchaseJson(sku).getBytes("UTF-8"));
+            mSignatures.put(sku, Base64.encode(signature.sign()));
+        }
+        mBinder.attachInterface(mProxy, IInAppBillingService.class.getName());
+    }
+
+    /** Returns a helper that is set up and talks to this service. */
+    IabHelper newHelper(Context context) {
+        IabHelper helper = new IabHelper(context, mPublicKey);
+        helper.mService = mProxy;
+        helper.mSetupDone = true;
+        return helper;
+    }
+
+    /** Returns the binder a service connection is handed for this service. */
+    IBinder asBinder() {
+        return mBinder;
+    }
+
+    /** Returns the key the purchases are signed with, in the form IabHelper is given. */
+    String getPublicKey() {
+        return mPublicKey;
+    }
+
+    /**
+     * Makes getPurchases calls hang until {@link #releaseGetPurchases}. Like a binder
+     * call, a hung call can't be interrupted.
+     */
+    void hangGetPurchases() {
+        mGetPurchasesGate = new CountDownLatch(1);
+    }
+
+    /** Lets hung getPurchases calls answer, and later ones answer right away. */
+    void releaseGetPurchases() {
+        CountDownLatch gate = mGetPurchasesGate;
+        mGetPurchasesGate = null;
+        if (gate != null) gate.countDown();
+    }
+
+    /** Returns the most calls that were in progress at once. */
+    int getPeakCallsInFlight() {
+        return mPeakCallsInFlight.get();
+    }
+
+    static String purchaseJson(String sku) {
+        return "{\"orderId\":\"order." + sku + "\",\"packageName\":\"com.example.app\","
+                + "\"productId\":\"" + sku + "\",\"purchaseTime\":1345678900000,"
+                + "\"purchaseState\":0,\"purchaseToken\":\"token." + sku + "\"}";
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) return method.invoke(this, args);
+        String name = method.getName();
+        if (name.equals("asBinder")) return mBinder;
+
+        int inFlight = mCallsInFlight.incrementAndGet();
+        for (int peak = mPeakCallsInFlight.get(); inFlight > peak; peak = mPeakCallsInFlight.get()) {
+            if (mPeakCallsInFlight.compareAndSet(peak, inFlight)) break;
+        }
+        try {
+            Thread.sleep(mLatency);
+            if (name.equals("getPurchases")) {
+                mGetPurchasesCalls.incrementAndGet();
+                awaitUninterruptibly(mGetPurchasesGate);
+                return getPurchases((String) args[2]);
+            }
+            else if (name.equals("getSkuDetails")) {
+                mGetSkuDetailsCalls.incrementAndGet();
+                return getSkuDetails((String) args[2], (Bundle) args[3]);
+            }
+            else if (name.equals("consumePurchase")) {
+                mConsumeCalls.incrementAndGet();
+            }
+            else if (name.equals("isBillingSupported")) {
+                return mBillingSupportedResponse;
+            }
+            return IabHelper.BILLING_RESPONSE_RESULT_OK;
+        }
+        finally {
+            mCallsInFlight.decrementAndGet();
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch gate) {
+        if (gate == null) return;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                gate.await();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private Bundle getPurchases(String itemType) {
+        ArrayList<String> skus = new ArrayList<String>();
+        ArrayList<String> data = new ArrayList<String>();
+        ArrayList<String> signatures = new ArrayList<String>();
+        if (IabHelper.ITEM_TYPE_INAPP.equals(itemType)) {
+            for (String sku : mOwnedSkus) {
+                skus.add(sku);
+                data.add(purchaseJson(sku));
+                signatures.add(mSignatures.containsKey(sku) ? mSignatures.get(sku) : "");
+            }
+        }
+        Bundle bundle = new Bundle();
+        bundle.putInt(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_OK);
+        bundle.putStringArrayList(IabHelper.RESPONSE_INAPP_ITEM_LIST, skus);
+        bundle.putStringArrayList(IabHelper.RESPONSE_INAPP_PURCHASE_DATA_LIST, data);
+        bundle.putStringArrayList(IabHelper.RESPONSE_INAPP_SIGNATURE_LIST, signatures);
+        return bundle;
+    }
+
+    private Bundle getSkuDetails(String itemType, Bundle query) {
+        ArrayList<String> details = new ArrayList<String>();
+        for (String sku : query.getStringArrayList(IabHelper.GET_SKU_DETAILS_ITEM_LIST)) {
+            details.add("{\"productId\":\"" + sku + "\",\"type\":\"" + itemType + "\","
+                    + "\"price\":\"$0.99\",\"title\":\"" + sku + "\",\"description\":\"\"}");
+        }
+        Bundle bundle = new Bundle();
+        bundle.putInt(IabHelper.RESPONSE_CODE, IabHelper.BILLING_RESPONSE_RESULT_OK);
+        bundle.putStringArrayList(IabHelper.RESPONSE_GET_SKU_DETAILS_LIST, details);
+        return bundle;
+    }
+}
@@ -0,0 +1,84 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import android.test.AndroidTestCase;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that a helper whose setup failed can start setup again, once whatever made it
+ * fail has gone away, instead of being stuck as if it were set up.
+ */
+public class IabSetupRetryTest extends AndroidTestCase {
+    private FakeBillingContext mContext;
+    private IabHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        IabHelper.setConnectionIdleTimeout(0);
+        mContext = FakeBillingContext.get(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mHelper != null) mHelper.dispose();
+        mContext.setService(null);
+        IabHelper.setConnectionIdleTimeout(BillingConnection.DEFAULT_IDLE_TIMEOUT);
+        super.tearDown();
+    }
+
+    public void testSetupCanBeRetriedOnceTheServiceIsInstalled() throws Exception {
+        FakeBillingService service = new FakeBillingService(0, Collections.<String>emptyList());
+        mHelper = new IabHelper(mContext, service.getPublicKey());
+
+        mContext.setService(null);
+        assertSetupFails(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE);
+
+        mContext.setService(service);
+        assertSetupSucceeds();
+    }
+
+    public void testSetupCanBeRetriedOnceBillingIsSupported() throws Exception {
+        FakeBillingService service = new FakeBillingService(0, Collections.<String>emptyList());
+        mHelper = new IabHelper(mContext, service.getPublicKey());
+        mContext.setService(service);
+
+        service.mBillingSupportedResponse = IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE;
+        assertSetupFails(IabHelper.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE);
+
+        service.mBillingSupportedResponse = IabHelper.BILLING_RESPONSE_RESULT_OK;
+        assertSetupSucceeds();
+    }
+
+    private void assertSetupFails(int response) throws Exception {
+        try {
+            mHelper.startSetup().get(5, TimeUnit.SECONDS);
+            fail("setup succeeded");
+        }
+        catch (ExecutionException e) {
+            assertEquals(response, ((IabException) e.getCause()).getResult().getResponse());
+        }
+    }
+
+    private void assertSetupSucceeds() throws Exception {
+        assertTrue(mHelper.startSetup().get(5, TimeUnit.SECONDS).isSuccess());
+        assertTrue(mHelper.mSetupDone);
+    }
+}
@@ -0,0 +1,102 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A load test of inventory query coalescing: many callers query the inventory of one
+ * helper at once, as ad slots do when they refresh together, against a fake billing
+ * service that takes a while to answer. Callers whose queries are covered by one in
+ * progress should join it rather than call the service themselves.
+ */
+public class InventoryQueryCoalescingTest extends AndroidTestCase {
+    private static final int CALLERS = 24;
+    private static final long LATENCY_MS = 100;
+    private static final List<String> OWNED = Arrays.asList("sku_0", "sku_1", "sku_2");
+
+    private FakeBillingService mService;
+    private IabHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mService = new FakeBillingService(LATENCY_MS, OWNED);
+        mHelper = mService.newHelper(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.dispose();
+        super.tearDown();
+    }
+
+    public void testConcurrentCallersShareQueries() throws Exception {
+        // A mix of the argument combinations ad slots use. Without coalescing each
+        // caller would make its own getPurchases call.
+        final List<List<String>> moreSkus = Arrays.asList(null, null, Arrays.asList("sku_0"));
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<IabFuture<Inventory>> futures = new ArrayList<IabFuture<Inventory>>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < CALLERS; ++i) {
+            final boolean querySkuDetails = i % 4 != 3;
+            final List<String> skus = moreSkus.get(i % moreSkus.size());
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    IabFuture<Inventory> future = mHelper.queryInventoryAsync(querySkuDetails, skus);
+                    synchronized (futures) {
+                        futures.add(future);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(CALLERS, futures.size());
+        for (IabFuture<Inventory> future : futures) {
+            Inventory inv = future.get(10 * LATENCY_MS, TimeUnit.MILLISECONDS);
+            for (String sku : OWNED) assertTrue(inv.hasPurchase(sku));
+        }
+        int getPurchases = mService.mGetPurchasesCalls.get();
+        assertTrue("getPurchases called " + getPurchases + " times for " + CALLERS + " callers",
+                getPurchases >= 1 && getPurchases <= CALLERS / 4);
+        assertTrue("getSkuDetails called " + mService.mGetSkuDetailsCalls.get() + " times",
+                mService.mGetSkuDetailsCalls.get() <= getPurchases);
+    }
+
+    public void testCallersAfterAQueryFinishesStartANewOne() throws Exception {
+        List<String> noMoreSkus = null;
+        Inventory first = mHelper.queryInventoryAsync(true, noMoreSkus).get(10 * LATENCY_MS, TimeUnit.MILLISECONDS);
+        Inventory second = mHelper.queryInventoryAsync(true, noMoreSkus).get(10 * LATENCY_MS, TimeUnit.MILLISECONDS);
+        assertNotSame(first, second);
+        assertEquals(2, mService.mGetPurchasesCalls.get());
+    }
+}
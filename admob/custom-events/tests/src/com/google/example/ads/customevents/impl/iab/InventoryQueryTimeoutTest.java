@@ -0,0 +1,91 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests an inventory query against a billing service whose getPurchases call hangs:
+ * the caller's deadline should fail the query on time, operations queued behind it
+ * should go ahead, and whatever the hung call answers in the end should be dropped.
+ */
+public class InventoryQueryTimeoutTest extends AndroidTestCase {
+    private static final long TIMEOUT_MS = 200;
+    private static final List<String> OWNED = Arrays.asList("sku_0", "sku_1");
+
+    private FakeBillingService mService;
+    private IabHelper mHelper;
+    private final AtomicInteger mInventoryChanges = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        IabHelper.getSnapshotFile(getContext()).delete();
+        mService = new FakeBillingService(0, OWNED);
+        mHelper = mService.newHelper(getContext());
+        mHelper.enableInventorySnapshot(true);
+        mHelper.setOnInventoryChangedListener(new IabHelper.OnInventoryChangedListener() {
+            public void onInventoryChanged(Inventory inv, List<Purchase> added, List<Purchase> removed) {
+                mInventoryChanges.incrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mService.releaseGetPurchases();
+        mHelper.dispose();
+        IabHelper.getSnapshotFile(getContext()).delete();
+        super.tearDown();
+    }
+
+    public void testHungQueryTimesOutWithoutPublishing() throws Exception {
+        mService.hangGetPurchases();
+
+        long start = System.nanoTime();
+        IabFuture<Inventory> query =
+                mHelper.queryInventoryAsync(false, (List<String>) null).withTimeout(TIMEOUT_MS);
+        try {
+            query.get(5, TimeUnit.SECONDS);
+            fail("query of a hung service succeeded");
+        }
+        catch (ExecutionException e) {
+            IabResult result = ((IabException) e.getCause()).getResult();
+            assertEquals(IabHelper.IABHELPER_TIMEOUT, result.getResponse());
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("timed out after " + elapsedMs + " ms", elapsedMs < TIMEOUT_MS * 3);
+
+        // The query gave up its place, though the call it made is still hung.
+        Purchase purchase = Purchase.parse(IabHelper.ITEM_TYPE_INAPP,
+                FakeBillingService.purchaseJson("sku_0"), "");
+        assertSame(purchase, mHelper.consumeAsync(purchase).get(5, TimeUnit.SECONDS));
+        assertEquals(1, mService.mConsumeCalls.get());
+
+        // Let the hung call answer; the abandoned query should throw its answer away.
+        mService.releaseGetPurchases();
+        Thread.sleep(500);
+        assertNull(mHelper.mInventoryCache.peek());
+        assertFalse(IabHelper.getSnapshotFile(getContext()).exists());
+        assertEquals(0, mInventoryChanges.get());
+    }
+}
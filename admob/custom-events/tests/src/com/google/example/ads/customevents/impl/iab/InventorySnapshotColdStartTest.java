@@ -0,0 +1,233 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.view.View;
+
+import com.google.ads.mediation.customevent.CustomEventBannerListener;
+import com.google.example.ads.customevents.IabActivity;
+import com.google.example.ads.customevents.impl.InAppPurchase;
+
+import java.io.File;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes after a cold start to decide whether the user owns an
+ * item: from the inventory snapshot, which reads the file and verifies the one
+ * purchase looked up, and from a live inventory query, which verifies every purchase.
+ * The live query runs against a fake billing service that answers at once, so its
+ * time leaves out binding the service and the binder calls, and is a lower bound.
+ * The times are logged under the tag IabSnapshotTest. Also tests that the InAppPurchase
+ * custom event answers each ad request once, whether from the snapshot or from the
+ * live query.
+ */
+public class InventorySnapshotColdStartTest extends AndroidTestCase {
+    private static final String TAG = "IabSnapshotTest";
+    private static final int OWNED = 100;
+    private static final int ROUNDS = 5;
+    // The product the InAppPurchase custom event sells
+    private static final String PURCHASED_SKU = "android.test.purchased";
+
+    private FakeBillingService mService;
+    private IabHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        List<String> owned = new ArrayList<String>(OWNED);
+        for (int i = 0; i < OWNED; ++i) owned.add("sku_" + i);
+        mService = new FakeBillingService(0, owned, generator.generateKeyPair());
+        mHelper = mService.newHelper(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // Deletes the snapshot the tests saved.
+        mHelper.enableInventorySnapshot(false);
+        mHelper.dispose();
+        super.tearDown();
+    }
+
+    public void testSnapshotDecidesFasterThanALiveQuery() throws Exception {
+        List<String> noMoreSkus = null;
+        long live = Long.MAX_VALUE;
+        long snapshot = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; ++round) {
+            // A new helper each round, as after a cold start: one that has queried
+            // before reuses the purchases it already verified. The query also saves
+            // the snapshot that is read next.
+            IabHelper helper = mService.newHelper(getContext());
+            helper.enableInventorySnapshot(true);
+            long start = System.nanoTime();
+            boolean liveOwned = helper.queryInventoryAsync(false, noMoreSkus)
+                    .get(10, TimeUnit.SECONDS).hasPurchase("sku_0");
+            live = Math.min(live, System.nanoTime() - start);
+            helper.dispose();
+
+            start = System.nanoTime();
+            Inventory inv = IabHelper.loadInventorySnapshot(getContext(), mService.getPublicKey());
+            boolean snapshotOwned = inv != null && inv.hasPurchase("sku_0");
+            snapshot = Math.min(snapshot, System.nanoTime() - start);
+
+            assertTrue(liveOwned);
+            assertTrue(snapshotOwned);
+        }
+        Log.i(TAG, OWNED + " purchases: live query " + live / 1000 + " us, snapshot "
+                + snapshot / 1000 + " us");
+        assertTrue("snapshot took " + snapshot / 1000 + " us, live query " + live / 1000 + " us",
+                snapshot < live);
+    }
+
+    public void testSnapshotDropsPurchasesWithBadSignatures() throws Exception {
+        Inventory.Builder builder = new Inventory.Builder();
+        builder.addPurchase(new Purchase(IabHelper.ITEM_TYPE_INAPP,
+                FakeBillingService.purchaseJson("sku_0"), Base64.encode(new byte[256])));
+        File file = IabHelper.getSnapshotFile(getContext());
+        InventorySnapshot.write(file, builder.build());
+
+        Inventory inv = IabHelper.loadInventorySnapshot(getContext(), mService.getPublicKey());
+        assertNotNull(inv);
+        assertFalse(inv.hasPurchase("sku_0"));
+        assertTrue(inv.getAllPurchases().isEmpty());
+    }
+
+    public void testLaterRequestIsAnsweredAfterTheSavedPurchaseIsGone() throws Exception {
+        // The saved inventory says the test purchase was made, but the billing service
+        // no longer has it.
+        FakeBillingContext context = FakeBillingContext.get(getContext());
+        context.setService(new FakeBillingService(0, Collections.<String>emptyList()));
+        IabHelper.setConnectionIdleTimeout(0);
+        Inventory.Builder saved = new Inventory.Builder();
+        saved.addPurchase(new Purchase(IabHelper.ITEM_TYPE_INAPP,
+                FakeBillingService.purchaseJson(PURCHASED_SKU), ""));
+        InventorySnapshot.write(IabHelper.getSnapshotFile(context), saved.build());
+
+        final TestIabActivity activity = onMainThread(new Callable<TestIabActivity>() {
+            public TestIabActivity call() {
+                return new TestIabActivity(FakeBillingContext.get(getContext()));
+            }
+        });
+        activity.getPreferences(Context.MODE_PRIVATE).edit().clear().commit();
+        final InAppPurchase event = new InAppPurchase();
+        try {
+            // Answered from the snapshot; the live query then finds the purchase gone.
+            RecordingBannerListener first = requestBannerAd(event, activity);
+            assertEquals(RecordingBannerListener.FAILED, first.next());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (true) {
+                Inventory inv = IabHelper.loadInventorySnapshot(activity, "unused");
+                if (inv == null || !inv.hasPurchase(PURCHASED_SKU)) break;
+                assertTrue("snapshot not updated", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            assertNull(first.poll());
+
+            // The same custom event is asked again, and this time only the live query
+            // can answer.
+            RecordingBannerListener second = requestBannerAd(event, activity);
+            assertEquals(RecordingBannerListener.RECEIVED, second.next());
+            assertNull(first.poll());
+        }
+        finally {
+            onMainThread(new Callable<Void>() {
+                public Void call() {
+                    event.destroy();
+                    return null;
+                }
+            });
+            context.setService(null);
+            IabHelper.setConnectionIdleTimeout(BillingConnection.DEFAULT_IDLE_TIMEOUT);
+        }
+    }
+
+    // Requests an ad on the main thread, where AdMob Mediation makes the request.
+    private RecordingBannerListener requestBannerAd(final InAppPurchase event,
+                                                    final IabActivity activity) throws Exception {
+        final RecordingBannerListener listener = new RecordingBannerListener();
+        onMainThread(new Callable<Void>() {
+            public Void call() {
+                event.requestBannerAd(listener, activity, null, null, null, null, null);
+                return null;
+            }
+        });
+        return listener;
+    }
+
+    private static <T> T onMainThread(Callable<T> task) throws Exception {
+        FutureTask<T> future = new FutureTask<T>(task);
+        new Handler(Looper.getMainLooper()).post(future);
+        return future.get(5, TimeUnit.SECONDS);
+    }
+
+    /** An IabActivity that can be used without starting it. */
+    private static class TestIabActivity extends IabActivity {
+        TestIabActivity(Context base) {
+            attachBaseContext(base);
+        }
+
+        @Override
+        public SharedPreferences getPreferences(int mode) {
+            return getSharedPreferences("TestIabActivity", mode);
+        }
+    }
+
+    /** Records what an ad request was answered with. */
+    private static class RecordingBannerListener implements CustomEventBannerListener {
+        static final String RECEIVED = "received";
+        static final String FAILED = "failed";
+
+        private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+
+        // Returns the next answer, waiting for it if need be.
+        String next() throws InterruptedException {
+            return mEvents.poll(5, TimeUnit.SECONDS);
+        }
+
+        // Returns the next answer if there is one already.
+        String poll() {
+            return mEvents.poll();
+        }
+
+        public void onReceivedAd(View view) {
+            mEvents.add(RECEIVED);
+        }
+
+        public void onFailedToReceiveAd() {
+            mEvents.add(FAILED);
+        }
+
+        public void onClick() { }
+        public void onPresentScreen() { }
+        public void onDismissScreen() { }
+        public void onLeaveApplication() { }
+    }
+}
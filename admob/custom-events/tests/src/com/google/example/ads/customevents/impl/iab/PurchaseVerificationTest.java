@@ -0,0 +1,245 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.example.ads.customevents.impl.iab;
+
+import junit.framework.TestCase;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that a purchase returned by the purchase flow is parsed and verified off the
+ * thread that receives it, which stands in for the UI thread here. Needs nothing but
+ * the JDK.
+ */
+public class PurchaseVerificationTest extends TestCase {
+    private static final String PURCHASE_DATA = "{\"orderId\":\"12999763169054705758.1371079406387615\","
+            + "\"packageName\":\"com.example.app\",\"productId\":\"android.test.purchased\","
+            + "\"purchaseTime\":1345678900000,\"purchaseState\":0,"
+            + "\"developerPayload\":\"payload\",\"purchaseToken\":\"token-1\"}";
+
+    private KeyPair mKeys;
+    private String mPublicKey;
+
+    // Plays the UI thread: receives the purchase and gets the outcome back.
+    private ExecutorService mMainThread;
+    private Thread mMainThreadThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        mKeys = generator.generateKeyPair();
+        mPublicKey = Base64.encode(mKeys.getPublic().getEncoded());
+
+        mMainThread = Executors.newSingleThreadExecutor();
+        mMainThreadThread = mMainThread.submit(new Callable<Thread>() {
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        }).get();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mMainThread.shutdownNow();
+    }
+
+    public void testVerifiesOffTheCallingThreadAndDeliversOnIt() throws Exception {
+        final GatedExecutor worker = new GatedExecutor();
+        final RecordingListener listener = new RecordingListener();
+        final String signature = sign(PURCHASE_DATA);
+
+        runOnMainThread(new Runnable() {
+            public void run() {
+                PurchaseVerification.verifyAsync(mPublicKey, IabHelper.ITEM_TYPE_INAPP,
+                        PURCHASE_DATA, signature, worker, mMainThread, listener);
+            }
+        });
+
+        // The call only handed the work over: nothing was parsed or verified yet.
+        assertEquals(1, worker.queued());
+        assertEquals(1, listener.mFinished.getCount());
+
+        worker.release();
+        assertTrue(listener.mFinished.await(10, TimeUnit.SECONDS));
+        assertTrue(listener.mResult.isSuccess());
+        assertEquals("android.test.purchased", listener.mPurchase.getSku());
+        assertEquals("token-1", listener.mPurchase.getToken());
+        assertSame(listener.mPurchase, listener.mVerified);
+
+        assertNotSame(mMainThreadThread, listener.mVerifiedOn);
+        assertSame(mMainThreadThread, listener.mFinishedOn);
+    }
+
+    public void testMainThreadOnlyHandsOff() throws Exception {
+        final int count = 50;
+        final String signature = sign(PURCHASE_DATA);
+        final GatedExecutor worker = new GatedExecutor();
+        final PurchaseVerification.Listener listener = new RecordingListener();
+        Runnable handOff = new Runnable() {
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    PurchaseVerification.verifyAsync(mPublicKey, IabHelper.ITEM_TYPE_INAPP,
+                            PURCHASE_DATA, signature, worker, mMainThread, listener);
+                }
+            }
+        };
+        // The same work done inline, as handleActivityResult used to.
+        Runnable inline = new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < count; ++i) {
+                        Purchase.parse(IabHelper.ITEM_TYPE_INAPP, PURCHASE_DATA, signature);
+                        assertTrue(Security.getVerifier(mPublicKey).verify(PURCHASE_DATA, signature));
+                    }
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        runOnMainThread(handOff);
+        runOnMainThread(inline);
+
+        long handOffNanos = runOnMainThread(handOff);
+        long inlineNanos = runOnMainThread(inline);
+        System.out.println("Main thread time for " + count + " purchases: "
+                + handOffNanos / 1000 + " us handing off, " + inlineNanos / 1000 + " us verifying inline");
+        assertTrue(handOffNanos < inlineNanos);
+    }
+
+    public void testBadSignatureIsReportedWithThePurchase() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        String otherKey = Base64.encode(generator.generateKeyPair().getPublic().getEncoded());
+        RecordingListener listener = new RecordingListener();
+
+        PurchaseVerification.verifyAsync(otherKey, IabHelper.ITEM_TYPE_INAPP,
+                PURCHASE_DATA, sign(PURCHASE_DATA), new GatedExecutor().released(),
+                mMainThread, listener);
+
+        assertTrue(listener.mFinished.await(10, TimeUnit.SECONDS));
+        assertEquals(IabHelper.IABHELPER_VERIFICATION_FAILED, listener.mResult.getResponse());
+        assertEquals("android.test.purchased", listener.mPurchase.getSku());
+        assertNull(listener.mVerified);
+        assertSame(mMainThreadThread, listener.mFinishedOn);
+    }
+
+    public void testMalformedDataIsABadResponse() throws Exception {
+        RecordingListener listener = new RecordingListener();
+
+        PurchaseVerification.verifyAsync(mPublicKey, IabHelper.ITEM_TYPE_INAPP,
+                "{\"productId\":", sign("{\"productId\":"), new GatedExecutor().released(),
+                mMainThread, listener);
+
+        assertTrue(listener.mFinished.await(10, TimeUnit.SECONDS));
+        assertEquals(IabHelper.IABHELPER_BAD_RESPONSE, listener.mResult.getResponse());
+        assertNull(listener.mPurchase);
+        assertNull(listener.mVerified);
+    }
+
+    public void testInvalidatedKeyIsParsedAgain() throws Exception {
+        SignatureVerifier verifier = Security.getVerifier(mPublicKey);
+        assertSame(verifier, Security.getVerifier(mPublicKey));
+
+        Security.invalidatePublicKey(mPublicKey);
+        SignatureVerifier reparsed = Security.getVerifier(mPublicKey);
+        assertNotSame(verifier, reparsed);
+        assertTrue(reparsed.verify(PURCHASE_DATA, sign(PURCHASE_DATA)));
+
+        Security.clearPublicKeyCache();
+        assertNotSame(reparsed, Security.getVerifier(mPublicKey));
+    }
+
+    private String sign(String data) throws Exception {
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(mKeys.getPrivate());
+        signature.update(data.getBytes("UTF-8"));
+        return Base64.encode(signature.sign());
+    }
+
+    // Runs the task on the stand-in UI thread and returns how long it took there.
+    private long runOnMainThread(final Runnable task) throws Exception {
+        return mMainThread.submit(new Callable<Long>() {
+            public Long call() {
+                long start = System.nanoTime();
+                task.run();
+                return System.nanoTime() - start;
+            }
+        }).get();
+    }
+
+    // Holds on to tasks until released, then runs them on a thread of its own.
+    private static class GatedExecutor implements Executor {
+        private final List<Runnable> mQueued = new ArrayList<Runnable>();
+        private boolean mReleased;
+
+        public synchronized void execute(Runnable task) {
+            if (mReleased) {
+                new Thread(task, "verification worker").start();
+            }
+            else {
+                mQueued.add(task);
+            }
+        }
+
+        synchronized int queued() {
+            return mQueued.size();
+        }
+
+        synchronized GatedExecutor released() {
+            release();
+            return this;
+        }
+
+        synchronized void release() {
+            mReleased = true;
+            for (Runnable task : mQueued) execute(task);
+            mQueued.clear();
+        }
+    }
+
+    private static class RecordingListener implements PurchaseVerification.Listener {
+        final CountDownLatch mFinished = new CountDownLatch(1);
+        volatile Purchase mVerified;
+        volatile Thread mVerifiedOn;
+        volatile IabResult mResult;
+        volatile Purchase mPurchase;
+        volatile Thread mFinishedOn;
+
+        public void onVerified(Purchase purchase) {
+            mVerified = purchase;
+            mVerifiedOn = Thread.currentThread();
+        }
+
+        public void onFinished(IabResult result, Purchase purchase) {
+            mResult = result;
+            mPurchase = purchase;
+            mFinishedOn = Thread.currentThread();
+            mFinished.countDown();
+        }
+    }
+}